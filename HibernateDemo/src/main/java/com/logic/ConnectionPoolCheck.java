@@ -0,0 +1,169 @@
+package com.logic;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.hibernate.cfg.Environment;
+import org.hibernate.cfg.ExtendedEnvironment;
+import org.hibernate.connection.PooledConnectionProvider;
+
+/**
+ * Exercises {@link PooledConnectionProvider} against an in-memory H2
+ * database: warmup, the pool size bound under contention, resetting returned
+ * connections, wait timeouts and leak detection. Needs the h2 runtime
+ * dependency on the class path.
+ */
+public class ConnectionPoolCheck {
+	static Logger log = Logger.getLogger(ConnectionPoolCheck.class.getName());
+
+	public static void main(String[] args) throws Exception {
+		checkContention();
+		checkReset();
+		checkTimeout();
+		checkLeak();
+		log.info("connection pool checks passed");
+	}
+
+	private static PooledConnectionProvider pool(String name, int size, String... settings) {
+		Properties props = new Properties();
+		props.setProperty(Environment.DRIVER, "org.h2.Driver");
+		props.setProperty(Environment.URL, "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+		props.setProperty(Environment.USER, "sa");
+		props.setProperty(Environment.PASS, "");
+		props.setProperty(Environment.POOL_SIZE, String.valueOf(size));
+		for (int i = 0; i < settings.length; i += 2) {
+			props.setProperty(settings[i], settings[i + 1]);
+		}
+		PooledConnectionProvider pool = new PooledConnectionProvider();
+		pool.configure(props);
+		return pool;
+	}
+
+	private static void checkContention() throws Exception {
+		final PooledConnectionProvider pool = pool("contention", 4, ExtendedEnvironment.POOL_MIN_IDLE, "2");
+		try {
+			check(pool.getIdleCount() == 2, "warmup opened " + pool.getIdleCount() + " connections, expected 2");
+			final AtomicInteger inUse = new AtomicInteger();
+			final AtomicInteger maxInUse = new AtomicInteger();
+			ExecutorService executor = Executors.newFixedThreadPool(16);
+			List<Future<Object>> futures = new ArrayList<Future<Object>>();
+			for (int t = 0; t < 16; t++) {
+				futures.add(executor.submit(new Callable<Object>() {
+					public Object call() throws SQLException {
+						for (int i = 0; i < 500; i++) {
+							Connection conn = pool.getConnection();
+							int current = inUse.incrementAndGet();
+							int max = maxInUse.get();
+							while ((current > max) && !maxInUse.compareAndSet(max, current)) {
+								max = maxInUse.get();
+							}
+							Statement stmt = conn.createStatement();
+							stmt.execute("select 1");
+							stmt.close();
+							inUse.decrementAndGet();
+							pool.closeConnection(conn);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Object> future : futures) {
+				future.get();
+			}
+			executor.shutdown();
+			check(maxInUse.get() <= 4, maxInUse.get() + " connections in use at once, pool size 4");
+			check(pool.getTotalCount() <= 4, pool.getTotalCount() + " connections open, pool size 4");
+			check(pool.getBorrowCount() == 8000, "borrowed " + pool.getBorrowCount() + " times, expected 8000");
+			log.info("contention: borrows " + pool.getBorrowCount() + ", created " + pool.getCreatedCount()
+					+ ", total wait " + pool.getTotalWaitNanos() / 1000000 + "ms");
+		} finally {
+			pool.close();
+		}
+	}
+
+	private static void checkReset() throws SQLException {
+		PooledConnectionProvider pool = pool("reset", 1);
+		try {
+			Connection conn = pool.getConnection();
+			boolean autoCommit = conn.getAutoCommit();
+			int isolation = conn.getTransactionIsolation();
+			Statement stmt = conn.createStatement();
+			stmt.execute("create table POOL_CHECK (ID int)");
+			stmt.close();
+			conn.setAutoCommit(true);
+			// H2 commits when the isolation changes, so change it first
+			conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+			conn.setAutoCommit(false);
+			stmt = conn.createStatement();
+			stmt.execute("insert into POOL_CHECK values (1)");
+			stmt.close();
+			conn.setReadOnly(true);
+			pool.closeConnection(conn);
+
+			Connection again = pool.getConnection();
+			check(again == conn, "the single pooled connection was not reused");
+			check(again.getAutoCommit() == autoCommit, "auto-commit was not restored");
+			check(!again.isReadOnly(), "read-only was not restored");
+			check(again.getTransactionIsolation() == isolation, "isolation was not restored");
+			stmt = again.createStatement();
+			ResultSet rs = stmt.executeQuery("select count(*) from POOL_CHECK");
+			rs.next();
+			check(rs.getInt(1) == 0, "uncommitted insert survived the return to the pool");
+			stmt.close();
+			pool.closeConnection(again);
+			log.info("reset: returned connection rolled back and restored");
+		} finally {
+			pool.close();
+		}
+	}
+
+	private static void checkTimeout() throws SQLException {
+		PooledConnectionProvider pool = pool("timeout", 2, ExtendedEnvironment.POOL_MAX_WAIT, "100");
+		try {
+			Connection first = pool.getConnection();
+			Connection second = pool.getConnection();
+			long start = System.currentTimeMillis();
+			try {
+				pool.getConnection();
+				check(false, "borrowed more connections than the pool size");
+			} catch (SQLException expected) {
+				log.info("timeout: " + expected.getMessage() + " after " + (System.currentTimeMillis() - start) + "ms");
+			}
+			check(pool.getTimeoutCount() == 1, "timeout was not counted");
+			pool.closeConnection(first);
+			pool.closeConnection(second);
+		} finally {
+			pool.close();
+		}
+	}
+
+	private static void checkLeak() throws Exception {
+		PooledConnectionProvider pool = pool("leak", 2, ExtendedEnvironment.POOL_LEAK_TIMEOUT, "50");
+		try {
+			Connection conn = pool.getConnection();
+			Thread.sleep(200);
+			check(pool.getLeakCount() == 1, "held connection reported " + pool.getLeakCount() + " times, expected 1");
+			pool.closeConnection(conn);
+			log.info("leak: connection held past the leak timeout was reported");
+		} finally {
+			pool.close();
+		}
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package com.logic;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.cfg.Environment;
+import org.hibernate.classic.Session;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.mapping.PersistentClass;
+import org.hibernate.persister.entity.DynamicUpdateEntityPersister;
+
+import com.domain.Employee;
+
+/**
+ * Exercises {@link DynamicUpdateEntityPersister} against an in-memory H2
+ * database, with the EMPLOYEETEST mapping switched to dynamic-update and
+ * this persister: updates of the same column share one UPDATE string that
+ * writes only that column, updates of other columns get their own. Needs
+ * the h2 runtime dependency on the class path.
+ */
+public class DynamicUpdateCheck {
+	static Logger log = Logger.getLogger(DynamicUpdateCheck.class.getName());
+
+	public static void main(String[] args) throws Exception {
+		Configuration configuration = new Configuration().addResource("Employee.hbm.xml")
+				.setProperty(Environment.DRIVER, "org.h2.Driver")
+				.setProperty(Environment.URL, "jdbc:h2:mem:dynamicupdate;DB_CLOSE_DELAY=-1")
+				.setProperty(Environment.USER, "sa").setProperty(Environment.DIALECT, "org.hibernate.dialect.H2Dialect")
+				.setProperty(Environment.HBM2DDL_AUTO, "create");
+		PersistentClass mapping = configuration.getClassMapping(Employee.class.getName());
+		mapping.setDynamicUpdate(true);
+		mapping.setEntityPersisterClass(DynamicUpdateEntityPersister.class);
+		SessionFactory factory = configuration.buildSessionFactory();
+		try {
+			check(((SessionFactoryImplementor) factory).getEntityPersister(Employee.class.getName())
+					instanceof DynamicUpdateEntityPersister, "Employee is not persisted by DynamicUpdateEntityPersister");
+			Integer first = save(factory, new Employee("Zara", "Ali", 1000));
+			Integer second = save(factory, new Employee("Daisy", "Das", 5000));
+
+			List<String> salaryUpdates = update(factory, first, second, false);
+			check(isShared(salaryUpdates), "salary updates did not share their SQL: " + salaryUpdates);
+			String salaryUpdate = salaryUpdates.get(0).toLowerCase();
+			check(salaryUpdate.contains("salary") && !salaryUpdate.contains("first_name"),
+					"salary update wrote other columns: " + salaryUpdate);
+
+			List<String> nameUpdates = update(factory, first, second, true);
+			check(isShared(nameUpdates), "name updates did not share their SQL: " + nameUpdates);
+			check(!nameUpdates.get(0).equals(salaryUpdates.get(0)), "name and salary updates share their SQL");
+			check(update(factory, first, second, false).get(0) == salaryUpdates.get(0),
+					"salary update SQL was not reused");
+
+			Session session = factory.openSession();
+			try {
+				Employee employee = (Employee) session.get(Employee.class, first);
+				check(employee.getSalary() == 1002 && "Zara1".equals(employee.getFirstName()),
+						"updates did not reach the database");
+			} finally {
+				session.close();
+			}
+			log.info("dynamic update checks passed: " + salaryUpdate);
+		} finally {
+			factory.close();
+		}
+	}
+
+	private static Integer save(SessionFactory factory, Employee employee) {
+		Session session = factory.openSession();
+		try {
+			Transaction tx = session.beginTransaction();
+			Integer id = (Integer) session.save(employee);
+			tx.commit();
+			return id;
+		} finally {
+			session.close();
+		}
+	}
+
+	/**
+	 * Raise the salary, or change the first name, of both employees and
+	 * return the UPDATE statements prepared for it.
+	 */
+	private static List<String> update(SessionFactory factory, Integer first, Integer second, boolean name) {
+		UpdateRecorder recorder = new UpdateRecorder();
+		Session session = factory.openSession(recorder);
+		try {
+			Transaction tx = session.beginTransaction();
+			Employee[] employees = { (Employee) session.get(Employee.class, first),
+					(Employee) session.get(Employee.class, second) };
+			for (int i = 0; i < employees.length; i++) {
+				if (name) {
+					employees[i].setFirstName(employees[i].getFirstName() + "1");
+				} else {
+					employees[i].setSalary(employees[i].getSalary() + 1);
+				}
+			}
+			tx.commit();
+		} finally {
+			session.close();
+		}
+		return recorder.updates;
+	}
+
+	/**
+	 * True if the updates of both employees used the same SQL string.
+	 */
+	private static boolean isShared(List<String> updates) {
+		if (updates.size() < 2) {
+			return false;
+		}
+		for (int i = 1; i < updates.size(); i++) {
+			if (updates.get(i) != updates.get(0)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+
+	private static class UpdateRecorder extends EmptyInterceptor {
+		private final List<String> updates = new ArrayList<String>();
+
+		public String onPrepareStatement(String sql) {
+			if (sql.toLowerCase().startsWith("update")) {
+				this.updates.add(sql);
+			}
+			return sql;
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package com.logic;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.cfg.Environment;
+import org.hibernate.cfg.ExtendedEnvironment;
+import org.hibernate.connection.DriverManagerConnectionProvider;
+import org.hibernate.stat.ExtendedStatistics;
+import org.hibernate.stat.ExtendedStatisticsImpl;
+
+import com.domain.Employee;
+
+/**
+ * Exercises <tt>hibernate.jdbc.batch_identity_inserts</tt> against an
+ * in-memory H2 database: employees with an identity column persisted in a
+ * transaction are inserted at flush as one batch, and with a driver that
+ * returns fewer generated keys than batched rows the batch is rolled back
+ * and the employees are inserted row by row, each with its own key. Needs
+ * the h2 runtime dependency on the class path.
+ */
+public class IdentityInsertBatchCheck {
+	static Logger log = Logger.getLogger(IdentityInsertBatchCheck.class.getName());
+
+	private static final int EMPLOYEES = 20;
+
+	private static final String MAPPING = "<?xml version=\"1.0\"?>"
+			+ "<!DOCTYPE hibernate-mapping PUBLIC \"-//Hibernate/Hibernate Mapping DTD 3.0//EN\""
+			+ " \"http://hibernate.sourceforge.net/hibernate-mapping-3.0.dtd\">"
+			+ "<hibernate-mapping>"
+			+ "<class name=\"com.domain.Employee\" table=\"EMPLOYEEIDENTITY\">"
+			+ "<id name=\"id\" type=\"int\" column=\"id\"><generator class=\"identity\"/></id>"
+			+ "<property name=\"firstName\" column=\"first_name\" type=\"string\"/>"
+			+ "<property name=\"lastName\" column=\"last_name\" type=\"string\"/>"
+			+ "<property name=\"salary\" column=\"salary\" type=\"double\"/>"
+			+ "</class>"
+			+ "</hibernate-mapping>";
+
+	public static void main(String[] args) throws Exception {
+		check("batched", DriverManagerConnectionProvider.class, 1);
+		check("firstkeyonly", FirstKeyOnlyConnectionProvider.class, 0);
+		log.info("identity insert batch checks passed");
+	}
+
+	private static void check(String name, Class connectionProvider, int expectedBatches) {
+		SessionFactory factory = new Configuration().addXML(MAPPING)
+				.setProperty(Environment.CONNECTION_PROVIDER, connectionProvider.getName())
+				.setProperty(Environment.DRIVER, "org.h2.Driver")
+				.setProperty(Environment.URL, "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1")
+				.setProperty(Environment.USER, "sa").setProperty(Environment.DIALECT, "org.hibernate.dialect.H2Dialect")
+				.setProperty(Environment.HBM2DDL_AUTO, "create").setProperty(Environment.GENERATE_STATISTICS, "true")
+				.setProperty(ExtendedEnvironment.BATCH_IDENTITY_INSERTS, "true").buildSessionFactory();
+		try {
+			for (int flush = 0; flush < 2; flush++) {
+				ExtendedStatistics statistics = ExtendedStatisticsImpl.forFactory(factory);
+				long batches = statistics.getBatchExecutionCount();
+				Employee[] employees = new Employee[EMPLOYEES];
+				Session session = factory.openSession();
+				try {
+					Transaction tx = session.beginTransaction();
+					for (int i = 0; i < employees.length; i++) {
+						employees[i] = new Employee("First" + i, "Flush" + flush, 1000 + i);
+						session.persist(employees[i]);
+					}
+					check(factory.getStatistics().getEntityInsertCount() == flush * EMPLOYEES,
+							"persist inserted before flush");
+					tx.commit();
+				} finally {
+					session.close();
+				}
+				batches = statistics.getBatchExecutionCount() - batches;
+				check(batches == expectedBatches, name + ": inserts ran in " + batches + " batches, expected "
+						+ expectedBatches);
+				checkIdentifiers(factory, employees, flush);
+			}
+			log.info(name + ": " + EMPLOYEES + " employees per flush inserted with their own keys");
+		} finally {
+			factory.close();
+		}
+	}
+
+	/**
+	 * Check that each employee of the flush was given the key of its row.
+	 */
+	private static void checkIdentifiers(SessionFactory factory, Employee[] employees, int flush) {
+		Session session = factory.openSession();
+		try {
+			List rows = session.createQuery("FROM Employee WHERE lastName = :flush")
+					.setParameter("flush", "Flush" + flush).list();
+			check(rows.size() == employees.length, rows.size() + " rows inserted, expected " + employees.length);
+			for (int i = 0; i < employees.length; i++) {
+				Employee row = (Employee) session.get(Employee.class, Integer.valueOf(employees[i].getId()));
+				check((row != null) && row.getFirstName().equals(employees[i].getFirstName())
+						&& row.getLastName().equals(employees[i].getLastName()), "employee " + i + " of flush " + flush
+						+ " was given the key " + employees[i].getId() + " of another row");
+			}
+		} finally {
+			session.close();
+		}
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+
+	/**
+	 * Hands out connections whose statements return only the first of the
+	 * keys generated by a batch, as some drivers do.
+	 */
+	public static class FirstKeyOnlyConnectionProvider extends DriverManagerConnectionProvider {
+		public Connection getConnection() throws SQLException {
+			final Connection connection = super.getConnection();
+			return (Connection) proxy(Connection.class, connection, new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					Object result = invokeOn(connection, method, args);
+					if (!(result instanceof PreparedStatement)) {
+						return result;
+					}
+					final PreparedStatement statement = (PreparedStatement) result;
+					return proxy(PreparedStatement.class, statement, new InvocationHandler() {
+						public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+							Object result = invokeOn(statement, method, args);
+							if (!method.getName().equals("getGeneratedKeys")) {
+								return result;
+							}
+							final ResultSet keys = (ResultSet) result;
+							return proxy(ResultSet.class, keys, new InvocationHandler() {
+								private boolean read;
+
+								public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+									if (method.getName().equals("next")) {
+										if (this.read) {
+											return Boolean.FALSE;
+										}
+										this.read = true;
+									}
+									return invokeOn(keys, method, args);
+								}
+							});
+						}
+					});
+				}
+			});
+		}
+
+		public void closeConnection(Connection connection) throws SQLException {
+			connection.close();
+		}
+
+		private static Object proxy(Class type, Object target, InvocationHandler handler) {
+			return Proxy.newProxyInstance(type.getClassLoader(), new Class[] { type }, handler);
+		}
+
+		private static Object invokeOn(Object target, Method method, Object[] args) throws Throwable {
+			try {
+				return method.invoke(target, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+}
@@ -1,9 +1,10 @@
 package com.logic;
 
 import java.util.Iterator;
-import java.util.List;
+import java.util.stream.Stream;
 
 import org.apache.log4j.Logger;
+import org.hibernate.ExtendedSession;
 import org.hibernate.HibernateException;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
@@ -63,23 +64,32 @@ public class ManageEmployee {
 		return employeeID;
 	}
 
-	/* Method to READ all the employees */
+	/* Method to READ all the employees, from the read replica if one is configured */
 	public void listEmployees() {
+		ExtendedSession readSession = (ExtendedSession) factory.openSession();
+		readSession.setReadOnlyConnection(true);
+		readSession.setDefaultReadOnly(true);
 		Transaction tx = null;
 		try {
-			tx = session.beginTransaction();
-			List<Employee> employees = session.createQuery("FROM Employee").list();
-			for (Iterator<Employee> iterator = employees.iterator(); iterator.hasNext();) {
-				Employee employee = iterator.next();
-				log.info("First Name: " + employee.getFirstName());
-				log.info(" Last Name: " + employee.getLastName());
-				log.info(" Salary: " + employee.getSalary());
+			tx = readSession.beginTransaction();
+			Stream<Employee> employees = readSession.stream(readSession.createQuery("FROM Employee"));
+			try {
+				for (Iterator<Employee> iterator = employees.iterator(); iterator.hasNext();) {
+					Employee employee = iterator.next();
+					log.info("First Name: " + employee.getFirstName());
+					log.info(" Last Name: " + employee.getLastName());
+					log.info(" Salary: " + employee.getSalary());
+				}
+			} finally {
+				employees.close();
 			}
 			tx.commit();
 		} catch (HibernateException e) {
 			if (tx != null)
 				tx.rollback();
 			e.printStackTrace();
+		} finally {
+			readSession.close();
 		}
 	}
 
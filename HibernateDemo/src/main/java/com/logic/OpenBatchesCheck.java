@@ -0,0 +1,126 @@
+package com.logic;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.cfg.Environment;
+import org.hibernate.cfg.ExtendedEnvironment;
+import org.hibernate.stat.ExtendedStatistics;
+import org.hibernate.stat.ExtendedStatisticsImpl;
+
+import com.domain.Employee;
+
+/**
+ * Exercises <tt>hibernate.jdbc.max_open_batches</tt> against an in-memory
+ * H2 database: inserts interleaved between two tables without a foreign key
+ * between them keep accumulating in their batches, while interleaved inserts
+ * of a table and a table referencing it still reach the database in order.
+ * Needs the h2 runtime dependency on the class path.
+ */
+public class OpenBatchesCheck {
+	static Logger log = Logger.getLogger(OpenBatchesCheck.class.getName());
+
+	private static final int BATCH_SIZE = 50;
+
+	/** An archive of employees and projects with their tasks, as maps. */
+	private static final String MAPPING = "<?xml version=\"1.0\"?>"
+			+ "<!DOCTYPE hibernate-mapping PUBLIC \"-//Hibernate/Hibernate Mapping DTD 3.0//EN\""
+			+ " \"http://hibernate.sourceforge.net/hibernate-mapping-3.0.dtd\">"
+			+ "<hibernate-mapping>"
+			+ "<class name=\"com.domain.Employee\" entity-name=\"ArchivedEmployee\" table=\"EMPLOYEEARCHIVE\">"
+			+ "<id name=\"id\" type=\"int\" column=\"id\"><generator class=\"increment\"/></id>"
+			+ "<property name=\"firstName\" column=\"first_name\" type=\"string\"/>"
+			+ "<property name=\"lastName\" column=\"last_name\" type=\"string\"/>"
+			+ "<property name=\"salary\" column=\"salary\" type=\"double\"/>"
+			+ "</class>"
+			+ "<class entity-name=\"Project\" table=\"PROJECT\">"
+			+ "<id name=\"id\" type=\"int\"><generator class=\"increment\"/></id>"
+			+ "<property name=\"name\" type=\"string\"/>"
+			+ "</class>"
+			+ "<class entity-name=\"Task\" table=\"TASK\">"
+			+ "<id name=\"id\" type=\"int\"><generator class=\"increment\"/></id>"
+			+ "<property name=\"name\" type=\"string\"/>"
+			+ "<many-to-one name=\"project\" entity-name=\"Project\" column=\"PROJECT_ID\" not-null=\"true\"/>"
+			+ "</class>"
+			+ "</hibernate-mapping>";
+
+	public static void main(String[] args) throws Exception {
+		SessionFactory factory = new Configuration().addResource("Employee.hbm.xml").addXML(MAPPING)
+				.setProperty(Environment.DRIVER, "org.h2.Driver")
+				.setProperty(Environment.URL, "jdbc:h2:mem:openbatches;DB_CLOSE_DELAY=-1")
+				.setProperty(Environment.USER, "sa").setProperty(Environment.DIALECT, "org.hibernate.dialect.H2Dialect")
+				.setProperty(Environment.HBM2DDL_AUTO, "create")
+				.setProperty(Environment.STATEMENT_BATCH_SIZE, String.valueOf(BATCH_SIZE))
+				.setProperty(ExtendedEnvironment.MAX_OPEN_BATCHES, "4").buildSessionFactory();
+		try {
+			checkUnrelatedTables(factory);
+			checkRelatedTables(factory);
+			log.info("open batches checks passed");
+		} finally {
+			factory.close();
+		}
+	}
+
+	private static void checkUnrelatedTables(SessionFactory factory) {
+		ExtendedStatistics statistics = ExtendedStatisticsImpl.forFactory(factory);
+		long executions = statistics.getBatchExecutionCount();
+		long rows = statistics.getBatchRowCount();
+		Session session = factory.openSession();
+		try {
+			Transaction tx = session.beginTransaction();
+			for (int i = 0; i < 2 * BATCH_SIZE; i++) {
+				session.save(new Employee("First" + i, "Last" + i, 1000 + i));
+				session.save("ArchivedEmployee", new Employee("Archived" + i, "Last" + i, 500 + i));
+			}
+			tx.commit();
+		} finally {
+			session.close();
+		}
+		executions = statistics.getBatchExecutionCount() - executions;
+		rows = statistics.getBatchRowCount() - rows;
+		check(rows == 4 * BATCH_SIZE, rows + " rows inserted in batches, expected " + 4 * BATCH_SIZE);
+		check(executions == 4, "interleaved inserts ran in " + executions + " batches, expected 4");
+		log.info("unrelated tables: " + rows + " interleaved rows in " + executions + " batches");
+	}
+
+	private static void checkRelatedTables(SessionFactory factory) {
+		Session session = factory.openSession();
+		try {
+			Transaction tx = session.beginTransaction();
+			for (int i = 0; i < BATCH_SIZE; i++) {
+				Map<String, Object> project = new HashMap<String, Object>();
+				project.put("name", "Project" + i);
+				session.save("Project", project);
+				Map<String, Object> task = new HashMap<String, Object>();
+				task.put("name", "Task" + i);
+				task.put("project", project);
+				session.save("Task", task);
+			}
+			// the foreign key of TASK fails the commit if a task reached the
+			// database before its project
+			tx.commit();
+		} finally {
+			session.close();
+		}
+		session = factory.openSession();
+		try {
+			int tasks = session.createQuery("from Task t where t.project.name = concat('Project', substring(t.name, 5))")
+					.list().size();
+			check(tasks == BATCH_SIZE, tasks + " tasks reference their project, expected " + BATCH_SIZE);
+			log.info("related tables: every task inserted after its project");
+		} finally {
+			session.close();
+		}
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+}
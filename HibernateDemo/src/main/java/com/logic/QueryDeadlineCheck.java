@@ -0,0 +1,69 @@
+package com.logic;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.apache.log4j.Logger;
+import org.hibernate.ExtendedSession;
+import org.hibernate.HibernateException;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.cfg.Environment;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.jdbc.AbstractBatcher;
+
+/**
+ * Exercises {@link ExtendedSession#withDeadline} against an in-memory H2
+ * database: a statement still running at the deadline is cancelled, and the
+ * session has no deadline once the call returns. Needs the h2 runtime
+ * dependency on the class path.
+ */
+public class QueryDeadlineCheck {
+	static Logger log = Logger.getLogger(QueryDeadlineCheck.class.getName());
+
+	/** Sums a billion numbers, which takes H2 many seconds. */
+	private static final String SLOW_QUERY = "select sum(X) from SYSTEM_RANGE(1, 1000000000)";
+
+	public static void main(String[] args) throws Exception {
+		SessionFactory factory = new Configuration().addResource("Employee.hbm.xml")
+				.setProperty(Environment.DRIVER, "org.h2.Driver")
+				.setProperty(Environment.URL, "jdbc:h2:mem:deadline;DB_CLOSE_DELAY=-1")
+				.setProperty(Environment.USER, "sa").setProperty(Environment.DIALECT, "org.hibernate.dialect.H2Dialect")
+				.setProperty(Environment.HBM2DDL_AUTO, "create").buildSessionFactory();
+		final ExtendedSession session = (ExtendedSession) factory.openSession();
+		try {
+			long start = System.currentTimeMillis();
+			try {
+				session.withDeadline(200, new Callable() {
+					public Object call() {
+						return session.createSQLQuery(SLOW_QUERY).list();
+					}
+				});
+				check(false, "the slow query completed within its deadline");
+			} catch (HibernateException expected) {
+				long elapsed = System.currentTimeMillis() - start;
+				check(elapsed < 2000, "the slow query was cancelled only after " + elapsed + "ms");
+				log.info("slow query cancelled after " + elapsed + "ms: " + expected.getMessage());
+			}
+			check(((AbstractBatcher) ((SessionImplementor) session).getBatcher()).getQueryDeadline() == 0L,
+					"the deadline was not restored");
+
+			List result = (List) session.withDeadline(5000, new Callable() {
+				public Object call() {
+					return session.createSQLQuery("select count(*) from EMPLOYEETEST").list();
+				}
+			});
+			check(result.size() == 1, "the query within its deadline did not complete");
+			log.info("query deadline checks passed");
+		} finally {
+			session.close();
+			factory.close();
+		}
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package com.logic;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.hibernate.ExtendedSession;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.cfg.Environment;
+import org.hibernate.engine.EntityEntry;
+import org.hibernate.engine.PersistenceContext;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.engine.Status;
+
+import com.domain.Employee;
+
+/**
+ * Measures the heap allocated while a session lists the EMPLOYEETEST table
+ * and the heap it holds afterwards, once as usual and once read-only by
+ * default, and checks that the read-only session kept no loaded state for
+ * the employees it loaded by query, criteria or proxy. The allocation is
+ * read from the JVM's per thread counter where it has one. Runs against an in-memory H2 database, so it
+ * needs the h2 runtime dependency on the class path; the first argument is
+ * the number of employees, 100000 by default.
+ */
+public class ReadOnlyHeapBenchmark {
+	static Logger log = Logger.getLogger(ReadOnlyHeapBenchmark.class.getName());
+
+	private static final String URL = "jdbc:h2:mem:employees;DB_CLOSE_DELAY=-1";
+
+	public static void main(String[] args) throws Exception {
+		int employees = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+		SessionFactory factory = new Configuration().addResource("Employee.hbm.xml")
+				.setProperty(Environment.DRIVER, "org.h2.Driver").setProperty(Environment.URL, URL)
+				.setProperty(Environment.USER, "sa").setProperty(Environment.DIALECT, "org.hibernate.dialect.H2Dialect")
+				.setProperty(Environment.HBM2DDL_AUTO, "create").buildSessionFactory();
+		try {
+			insert(employees);
+			// the first run warms up, the second is reported
+			for (int run = 0; run < 2; run++) {
+				long[] writable = measure(factory, false);
+				long[] readOnly = measure(factory, true);
+				if (run == 1) {
+					log.info(employees + " employees: " + (writable[0] / 1024) + " KB allocated and "
+							+ (writable[1] / 1024) + " KB held writable, " + (readOnly[0] / 1024) + " KB allocated and "
+							+ (readOnly[1] / 1024) + " KB held read-only (" + (writable[1] - readOnly[1]) / employees
+							+ " bytes less held per employee)");
+				}
+			}
+			checkReadOnlyLoads(factory);
+			log.info("read-only loads kept no loaded state");
+		} finally {
+			factory.close();
+		}
+	}
+
+	/**
+	 * The heap allocated while listing all employees, or -1 if it cannot be
+	 * measured, and the heap held by the session afterwards.
+	 */
+	private static long[] measure(SessionFactory factory, boolean readOnly) {
+		long before = usedHeap();
+		ExtendedSession session = (ExtendedSession) factory.openSession();
+		try {
+			session.setDefaultReadOnly(readOnly);
+			long allocatedBefore = allocatedBytes();
+			List list = session.createQuery("FROM Employee").list();
+			long allocated = (allocatedBefore < 0) ? -1 : allocatedBytes() - allocatedBefore;
+			long held = usedHeap() - before;
+			check(loadedStateCount(session) == (readOnly ? 0 : list.size()), "unexpected loaded state count");
+			return new long[] { allocated, held };
+		} finally {
+			session.close();
+		}
+	}
+
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static void checkReadOnlyLoads(SessionFactory factory) {
+		ExtendedSession session = (ExtendedSession) factory.openSession();
+		try {
+			session.setDefaultReadOnly(true);
+			session.createCriteria(Employee.class).setMaxResults(10).list();
+			check(loadedStateCount(session) == 0, "criteria kept loaded state");
+			session.clear();
+
+			Employee employee = (Employee) session.load(Employee.class, Integer.valueOf(1));
+			employee.getFirstName();
+			check(loadedStateCount(session) == 0, "proxy initialization kept loaded state");
+			check(isReadOnly(session, employee), "proxy initialization loaded a writable employee");
+			session.clear();
+
+			session.setDefaultReadOnly(false);
+			employee = (Employee) session.get(Employee.class, Integer.valueOf(1));
+			session.setDefaultReadOnly(true);
+			session.refresh(employee);
+			check(!isReadOnly(session, employee), "refresh made a writable employee read-only");
+		} finally {
+			session.close();
+		}
+	}
+
+	private static boolean isReadOnly(ExtendedSession session, Object entity) {
+		PersistenceContext persistenceContext = ((SessionImplementor) session).getPersistenceContext();
+		return persistenceContext.getEntry(persistenceContext.unproxy(entity)).getStatus() == Status.READ_ONLY;
+	}
+
+	private static int loadedStateCount(ExtendedSession session) {
+		int count = 0;
+		Map entries = ((SessionImplementor) session).getPersistenceContext().getEntityEntries();
+		for (Iterator iterator = entries.values().iterator(); iterator.hasNext();) {
+			if (((EntityEntry) iterator.next()).getLoadedState() != null) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static void insert(int employees) throws SQLException {
+		Connection conn = DriverManager.getConnection(URL, "sa", "");
+		try {
+			PreparedStatement stmt = conn.prepareStatement("insert into EMPLOYEETEST values (?, ?, ?, ?)");
+			for (int i = 1; i <= employees; i++) {
+				stmt.setInt(1, i);
+				stmt.setString(2, "First" + i);
+				stmt.setString(3, "Last" + i);
+				stmt.setDouble(4, 1000 + i);
+				stmt.addBatch();
+				if (i % 1000 == 0) {
+					stmt.executeBatch();
+				}
+			}
+			stmt.executeBatch();
+			stmt.close();
+		} finally {
+			conn.close();
+		}
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package com.logic;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.hibernate.ExtendedSession;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.cfg.Environment;
+import org.hibernate.cfg.ExtendedEnvironment;
+import org.hibernate.connection.RoutingConnectionProvider;
+import org.hibernate.engine.SessionFactoryImplementor;
+
+import com.domain.Employee;
+
+/**
+ * Exercises {@link RoutingConnectionProvider} against two in-memory H2
+ * databases standing in for a primary and its replica, each holding a
+ * different employee so a read shows where it went: read-only sessions,
+ * the switch to the primary at the first write and read-only transactions.
+ * Needs the h2 runtime dependency on the class path.
+ */
+public class ReplicaRoutingCheck {
+	static Logger log = Logger.getLogger(ReplicaRoutingCheck.class.getName());
+
+	private static final String PRIMARY_URL = "jdbc:h2:mem:primary;DB_CLOSE_DELAY=-1";
+	private static final String REPLICA_URL = "jdbc:h2:mem:replica;DB_CLOSE_DELAY=-1";
+
+	public static void main(String[] args) throws Exception {
+		SessionFactory factory = new Configuration().addResource("Employee.hbm.xml")
+				.setProperty(Environment.CONNECTION_PROVIDER, RoutingConnectionProvider.class.getName())
+				.setProperty(Environment.DRIVER, "org.h2.Driver").setProperty(Environment.URL, PRIMARY_URL)
+				.setProperty(Environment.USER, "sa").setProperty(ExtendedEnvironment.REPLICA_PREFIX + "url", REPLICA_URL)
+				.setProperty(Environment.DIALECT, "org.hibernate.dialect.H2Dialect")
+				.setProperty(Environment.HBM2DDL_AUTO, "create").buildSessionFactory();
+		try {
+			execute(PRIMARY_URL, "insert into EMPLOYEETEST values (1, 'Primary', 'Row', 1000)");
+			execute(REPLICA_URL, "create table EMPLOYEETEST (id int primary key, first_name varchar(255), "
+					+ "last_name varchar(255), salary double)");
+			execute(REPLICA_URL, "insert into EMPLOYEETEST values (1, 'Replica', 'Row', 1000)");
+
+			checkReadOnlySession(factory);
+			checkReadOnlyTransaction(factory);
+			RoutingConnectionProvider provider = (RoutingConnectionProvider) ((SessionFactoryImplementor) factory)
+					.getConnectionProvider();
+			check(provider.getReplica().getActiveCount() == 0, "replica connections were not returned");
+			check(provider.getPrimary().getActiveCount() == 0, "primary connections were not returned");
+			log.info("replica routing checks passed");
+		} finally {
+			factory.close();
+		}
+	}
+
+	private static void checkReadOnlySession(SessionFactory factory) {
+		ExtendedSession session = (ExtendedSession) factory.openSession();
+		try {
+			session.setReadOnlyConnection(true);
+			Transaction tx = session.beginTransaction();
+			check("Replica".equals(firstName(session)), "read-only session did not read from the replica");
+			session.save(new Employee("Written", "Row", 2000));
+			tx.commit();
+			log.info("read-only session: read the replica, first write switched to the primary");
+		} finally {
+			session.close();
+		}
+		check(count(factory, "Written") == 1, "write of a read-only session did not reach the primary");
+	}
+
+	private static void checkReadOnlyTransaction(SessionFactory factory) {
+		ExtendedSession session = (ExtendedSession) factory.openSession();
+		try {
+			Transaction tx = session.beginTransaction();
+			session.save(new Employee("Other", "Row", 3000));
+			tx.commit();
+
+			session.setReadOnlyTransaction(true);
+			tx = session.beginTransaction();
+			check("Replica".equals(firstName(session)), "read-only transaction did not read from the replica");
+			tx.commit();
+			check(!session.isReadOnlyTransaction(), "read-only transaction was not cleared on commit");
+
+			tx = session.beginTransaction();
+			check("Primary".equals(firstName(session)), "transaction after a read-only one stayed on the replica");
+			tx.commit();
+			log.info("read-only transaction: read the replica, the next transaction the primary");
+		} finally {
+			session.close();
+		}
+	}
+
+	private static String firstName(ExtendedSession session) {
+		return (String) session.createQuery("SELECT firstName FROM Employee WHERE id = 1").uniqueResult();
+	}
+
+	private static int count(SessionFactory factory, String firstName) {
+		ExtendedSession session = (ExtendedSession) factory.openSession();
+		try {
+			List employees = session.createQuery("FROM Employee WHERE firstName = :name")
+					.setParameter("name", firstName).list();
+			return employees.size();
+		} finally {
+			session.close();
+		}
+	}
+
+	private static void execute(String url, String sql) throws SQLException {
+		Connection conn = DriverManager.getConnection(url, "sa", "");
+		try {
+			Statement stmt = conn.createStatement();
+			stmt.execute(sql);
+			stmt.close();
+		} finally {
+			conn.close();
+		}
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package com.logic;
+
+import java.lang.management.ManagementFactory;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.cfg.Environment;
+
+import com.domain.Employee;
+
+/**
+ * Measures the heap allocated per short unit of work, a session that opens,
+ * gets an employee and closes, and per session that only opens and closes:
+ * the second is all that pooling the session and its action queue,
+ * persistence context, JDBC context and filter map could save. The
+ * allocation is read from the JVM's per thread counter, so it needs a JVM
+ * that has one. Runs against an in-memory H2 database, so it needs the h2
+ * runtime dependency on the class path; the first argument is the number of
+ * sessions per run, 100000 by default.
+ */
+public class SessionAllocationBenchmark {
+	static Logger log = Logger.getLogger(SessionAllocationBenchmark.class.getName());
+
+	public static void main(String[] args) throws Exception {
+		int sessions = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+		if (allocatedBytes() < 0) {
+			log.warn("this JVM does not count allocated bytes per thread");
+			return;
+		}
+		SessionFactory factory = new Configuration().addResource("Employee.hbm.xml")
+				.setProperty(Environment.DRIVER, "org.h2.Driver")
+				.setProperty(Environment.URL, "jdbc:h2:mem:allocation;DB_CLOSE_DELAY=-1")
+				.setProperty(Environment.USER, "sa").setProperty(Environment.DIALECT, "org.hibernate.dialect.H2Dialect")
+				.setProperty(Environment.HBM2DDL_AUTO, "create").buildSessionFactory();
+		try {
+			Integer id = save(factory);
+			// the first run warms up, the second is reported
+			for (int run = 0; run < 2; run++) {
+				long empty = allocatedPerSession(factory, null, sessions);
+				long work = allocatedPerSession(factory, id, sessions);
+				if (run == 1) {
+					log.info(sessions + " sessions: " + work + " bytes allocated per unit of work, " + empty
+							+ " of them by opening and closing the session (" + (100 * empty / work)
+							+ "%), or " + (empty * 1000000 / 3600 / 1024) + " KB/s at a million sessions an hour");
+				}
+			}
+		} finally {
+			factory.close();
+		}
+	}
+
+	/**
+	 * The bytes allocated per session that opens, gets the given employee
+	 * unless it is null, and closes.
+	 */
+	private static long allocatedPerSession(SessionFactory factory, Integer id, int sessions) {
+		long before = allocatedBytes();
+		for (int i = 0; i < sessions; i++) {
+			Session session = factory.openSession();
+			try {
+				if (id != null) {
+					session.get(Employee.class, id);
+				}
+			} finally {
+				session.close();
+			}
+		}
+		return (allocatedBytes() - before) / sessions;
+	}
+
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static Integer save(SessionFactory factory) {
+		Session session = factory.openSession();
+		try {
+			Transaction tx = session.beginTransaction();
+			Integer id = (Integer) session.save(new Employee("Zara", "Ali", 1000));
+			tx.commit();
+			return id;
+		} finally {
+			session.close();
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package com.logic;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.cfg.Environment;
+
+/**
+ * Measures the Java serialization of a disconnected session holding queued
+ * inserts and loaded employees: its size, the best write and read times,
+ * and the size of the employees alone. ObjectOutputStream writes each
+ * employee once and refers back to it, so the difference is what a format
+ * that references entities by index could still save. The employees are
+ * mapped as maps, since the entities of a serialized session must be
+ * serializable. Runs against an in-memory H2 database, so it needs the h2
+ * runtime dependency on the class path; the first argument is the number of
+ * employees of each kind, 2000 by default.
+ */
+public class SessionSerializationBenchmark {
+	static Logger log = Logger.getLogger(SessionSerializationBenchmark.class.getName());
+
+	private static final int RUNS = 30;
+
+	private static final String MAPPING = "<?xml version=\"1.0\"?>"
+			+ "<!DOCTYPE hibernate-mapping PUBLIC \"-//Hibernate/Hibernate Mapping DTD 3.0//EN\""
+			+ " \"http://hibernate.sourceforge.net/hibernate-mapping-3.0.dtd\">"
+			+ "<hibernate-mapping>"
+			+ "<class entity-name=\"Employee\" table=\"EMPLOYEETEST\">"
+			+ "<id name=\"id\" type=\"int\" column=\"id\"><generator class=\"increment\"/></id>"
+			+ "<property name=\"firstName\" column=\"first_name\" type=\"string\"/>"
+			+ "<property name=\"lastName\" column=\"last_name\" type=\"string\"/>"
+			+ "<property name=\"salary\" column=\"salary\" type=\"double\"/>"
+			+ "</class>"
+			+ "</hibernate-mapping>";
+
+	public static void main(String[] args) throws Exception {
+		int employees = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+		SessionFactory factory = new Configuration().addXML(MAPPING)
+				.setProperty(Environment.DRIVER, "org.h2.Driver")
+				.setProperty(Environment.URL, "jdbc:h2:mem:serialization;DB_CLOSE_DELAY=-1")
+				.setProperty(Environment.USER, "sa").setProperty(Environment.DIALECT, "org.hibernate.dialect.H2Dialect")
+				.setProperty(Environment.HBM2DDL_AUTO, "create").buildSessionFactory();
+		try {
+			insert(factory, employees);
+			Session session = factory.openSession();
+			session.setFlushMode(FlushMode.MANUAL);
+			List entities = new ArrayList(session.createQuery("FROM Employee").list());
+			for (int i = 0; i < employees; i++) {
+				Map employee = employee("Queued" + i, "Last" + i, 2000 + i);
+				session.save("Employee", employee);
+				entities.add(employee);
+			}
+			session.disconnect();
+
+			byte[] bytes = null;
+			long bestWrite = Long.MAX_VALUE;
+			long bestRead = Long.MAX_VALUE;
+			for (int run = 0; run < RUNS; run++) {
+				long start = System.nanoTime();
+				bytes = serialize(session);
+				bestWrite = Math.min(bestWrite, System.nanoTime() - start);
+				start = System.nanoTime();
+				Session copy = (Session) new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+				bestRead = Math.min(bestRead, System.nanoTime() - start);
+				check(copy.getStatistics().getEntityCount() == 2 * employees, "the read session does not hold the "
+						+ 2 * employees + " employees");
+			}
+			int entityBytes = serialize(entities).length;
+			log.info(employees + " loaded and " + employees + " queued employees: " + bytes.length / 1024
+					+ " KB, written in " + bestWrite / 1000 + " us and read in " + bestRead / 1000 + " us (best of "
+					+ RUNS + "); the employees alone take " + entityBytes / 1024 + " KB, the rest of the session "
+					+ (bytes.length - entityBytes) / 1024 + " KB");
+			session.close();
+		} finally {
+			factory.close();
+		}
+	}
+
+	private static byte[] serialize(Object object) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bytes);
+		oos.writeObject(object);
+		oos.close();
+		return bytes.toByteArray();
+	}
+
+	private static void insert(SessionFactory factory, int employees) {
+		Session session = factory.openSession();
+		try {
+			Transaction tx = session.beginTransaction();
+			for (int i = 0; i < employees; i++) {
+				session.save("Employee", employee("First" + i, "Last" + i, 1000 + i));
+			}
+			tx.commit();
+		} finally {
+			session.close();
+		}
+	}
+
+	private static Map employee(String firstName, String lastName, double salary) {
+		Map<String, Object> employee = new HashMap<String, Object>();
+		employee.put("firstName", firstName);
+		employee.put("lastName", lastName);
+		employee.put("salary", Double.valueOf(salary));
+		return employee;
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package com.logic;
+
+import org.apache.log4j.Logger;
+import org.hibernate.ExtendedSession;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.cfg.Environment;
+import org.hibernate.cfg.ExtendedEnvironment;
+
+import com.domain.Employee;
+
+/**
+ * Exercises <tt>hibernate.jdbc.max_queued_actions</tt> against an in-memory
+ * H2 database: an employee changed right after it was saved keeps the
+ * change even when its save reached the bound, and the employees written
+ * before it are evicted at the next write. Needs the h2 runtime dependency
+ * on the class path.
+ */
+public class WriteBehindCheck {
+	static Logger log = Logger.getLogger(WriteBehindCheck.class.getName());
+
+	private static final int MAX_QUEUED_ACTIONS = 10;
+
+	public static void main(String[] args) throws Exception {
+		SessionFactory factory = new Configuration().addResource("Employee.hbm.xml")
+				.setProperty(Environment.DRIVER, "org.h2.Driver")
+				.setProperty(Environment.URL, "jdbc:h2:mem:writebehind;DB_CLOSE_DELAY=-1")
+				.setProperty(Environment.USER, "sa").setProperty(Environment.DIALECT, "org.hibernate.dialect.H2Dialect")
+				.setProperty(Environment.HBM2DDL_AUTO, "create")
+				.setProperty(ExtendedEnvironment.MAX_QUEUED_ACTIONS, String.valueOf(MAX_QUEUED_ACTIONS))
+				.buildSessionFactory();
+		try {
+			Employee[] employees = new Employee[3 * MAX_QUEUED_ACTIONS + 1];
+			ExtendedSession session = (ExtendedSession) factory.openSession();
+			try {
+				Transaction tx = session.beginTransaction();
+				for (int i = 0; i < employees.length; i++) {
+					employees[i] = new Employee("First" + i, "Last" + i, 1000);
+					session.save(employees[i]);
+					employees[i].setSalary(2000 + i);
+					if (i == MAX_QUEUED_ACTIONS) {
+						check(!session.contains(employees[0]), "the first employees were not evicted at the bound");
+						check(session.contains(employees[i]), "the employee saved at the bound was evicted");
+					}
+				}
+				tx.commit();
+			} finally {
+				session.close();
+			}
+
+			session = (ExtendedSession) factory.openSession();
+			try {
+				for (int i = 0; i < employees.length; i++) {
+					Employee employee = (Employee) session.get(Employee.class, Integer.valueOf(employees[i].getId()));
+					check(employee.getSalary() == 2000 + i, "the salary set after saving employee " + i + " was lost");
+				}
+			} finally {
+				session.close();
+			}
+			log.info("write-behind checks passed: changes made after save were kept for " + employees.length
+					+ " employees");
+		} finally {
+			factory.close();
+		}
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+}
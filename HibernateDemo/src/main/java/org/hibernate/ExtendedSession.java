@@ -0,0 +1,85 @@
+package org.hibernate;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.stream.Stream;
+
+import org.hibernate.engine.BulkFlushResult;
+import org.hibernate.stat.FlushProfile;
+
+/**
+ * The operations this tree adds to a session. The sessions opened by a
+ * session factory implement it, so a session can be cast to it.
+ */
+public interface ExtendedSession extends org.hibernate.classic.Session {
+	/**
+	 * Route the connections this session opens from now on to a read
+	 * replica, if a RoutingConnectionProvider is configured and the session
+	 * has not written yet. A connection already held is not switched, except
+	 * to the primary at the first write.
+	 */
+	public void setReadOnlyConnection(boolean readOnly);
+
+	public boolean isReadOnlyConnection();
+
+	/**
+	 * Route the connection of the current or next transaction to a read
+	 * replica, even if the session has written before. Cleared when the
+	 * transaction completes; its first write moves it to the primary.
+	 */
+	public void setReadOnlyTransaction(boolean readOnly);
+
+	public boolean isReadOnlyTransaction();
+
+	/**
+	 * Load entities read-only from now on, without a loaded state snapshot
+	 * and skipped by flush dirty checking. Entities already in the session
+	 * are not affected. For a single query use Query.setReadOnly(true).
+	 */
+	public void setDefaultReadOnly(boolean defaultReadOnly);
+
+	public boolean isDefaultReadOnly();
+
+	/**
+	 * Stream the results of a query from a forward only cursor, evicting
+	 * what it loads as it goes. The stream must be closed if it is not read
+	 * to the end.
+	 */
+	public Stream stream(Query query) throws HibernateException;
+
+	/**
+	 * Get the entities of the given class with the given identifiers, in the
+	 * order of the identifiers and with null for rows that do not exist.
+	 */
+	public List getMany(Class entityClass, Collection ids) throws HibernateException;
+
+	public List getMany(String entityName, Collection ids) throws HibernateException;
+
+	/**
+	 * Flush, executing the independent queued inserts in parallel on the
+	 * given number of connections, each committed on its own. Not atomic.
+	 */
+	public BulkFlushResult bulkFlush(int connections) throws HibernateException;
+
+	/**
+	 * Bound the number of actions queued since the last flush. 0 means no
+	 * bound.
+	 */
+	public void setMaxQueuedActions(int maxQueuedActions);
+
+	public int getMaxQueuedActions();
+
+	/**
+	 * The timings of this session's flushes, or null if flush profiling is
+	 * not enabled.
+	 */
+	public FlushProfile getFlushProfile();
+
+	/**
+	 * Call the work with a deadline the given number of milliseconds from
+	 * now, cancelling the statements it runs that have not completed by then.
+	 * The previous deadline is restored when the work returns.
+	 */
+	public Object withDeadline(long timeoutMillis, Callable work) throws Exception;
+}
@@ -0,0 +1,173 @@
+package org.hibernate.action;
+
+import java.io.Serializable;
+import org.hibernate.AssertionFailure;
+import org.hibernate.HibernateException;
+import org.hibernate.engine.EntityKey;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.event.EventSource;
+import org.hibernate.event.PostInsertEvent;
+import org.hibernate.event.PostInsertEventListener;
+import org.hibernate.event.PreInsertEvent;
+import org.hibernate.event.PreInsertEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+
+public final class EntityIdentityInsertAction
+  extends EntityAction
+{
+  private final Object[] state;
+  private final boolean isDelayed;
+  private final EntityKey delayedEntityKey;
+  private Serializable generatedId;
+
+  public EntityIdentityInsertAction(Object[] state, Object instance, EntityPersister persister, SessionImplementor session, boolean isDelayed)
+    throws HibernateException
+  {
+    super(session, null, instance, persister);
+    this.state = state;
+    this.isDelayed = isDelayed;
+    this.delayedEntityKey = (isDelayed ? generateDelayedEntityKey() : null);
+  }
+
+  public void execute()
+    throws HibernateException
+  {
+    EntityPersister persister = getPersister();
+    SessionImplementor session = getSession();
+    Object instance = getInstance();
+
+    boolean veto = preInsert();
+    if (!veto)
+    {
+      this.generatedId = persister.insert(this.state, instance, session);
+      if (persister.hasInsertGeneratedProperties()) {
+        persister.processInsertGeneratedProperties(this.generatedId, instance, this.state, session);
+      }
+      persister.setIdentifier(instance, this.generatedId, session.getEntityMode());
+    }
+    postInsert();
+    if ((session.getFactory().getStatistics().isStatisticsEnabled()) && (!veto)) {
+      session.getFactory().getStatisticsImplementor().insertEntity(getPersister().getEntityName());
+    }
+  }
+
+  /**
+   * Run the pre-insert listeners of an insert that is executed as part of a
+   * JDBC batch instead of through {@link #execute()}.
+   *
+   * @return true if a listener vetoed the insert
+   */
+  public boolean beforeBatchedInsert()
+  {
+    return preInsert();
+  }
+
+  /**
+   * Complete an insert executed as part of a JDBC batch, given the identifier
+   * the database generated for it, or null if the insert was vetoed.
+   */
+  public void afterBatchedInsert(Serializable generatedId)
+    throws HibernateException
+  {
+    EntityPersister persister = getPersister();
+    SessionImplementor session = getSession();
+    Object instance = getInstance();
+    if (generatedId != null)
+    {
+      this.generatedId = generatedId;
+      if (persister.hasInsertGeneratedProperties()) {
+        persister.processInsertGeneratedProperties(generatedId, instance, this.state, session);
+      }
+      persister.setIdentifier(instance, generatedId, session.getEntityMode());
+    }
+    postInsert();
+    if ((session.getFactory().getStatistics().isStatisticsEnabled()) && (generatedId != null)) {
+      session.getFactory().getStatisticsImplementor().insertEntity(persister.getEntityName());
+    }
+  }
+
+  public Object[] getState()
+  {
+    return this.state;
+  }
+
+  public boolean isDelayed()
+  {
+    return this.isDelayed;
+  }
+
+  private void postInsert()
+  {
+    if (this.isDelayed) {
+      getSession().getPersistenceContext().replaceDelayedEntityIdentityInsertKeys(this.delayedEntityKey, this.generatedId);
+    }
+    PostInsertEventListener[] postListeners = getSession().getListeners().getPostInsertEventListeners();
+    if (postListeners.length > 0)
+    {
+      PostInsertEvent postEvent = new PostInsertEvent(getInstance(), this.generatedId, this.state, getPersister(), (EventSource)getSession());
+      for (int i = 0; i < postListeners.length; i++) {
+        postListeners[i].onPostInsert(postEvent);
+      }
+    }
+  }
+
+  private void postCommitInsert()
+  {
+    PostInsertEventListener[] postListeners = getSession().getListeners().getPostCommitInsertEventListeners();
+    if (postListeners.length > 0)
+    {
+      PostInsertEvent postEvent = new PostInsertEvent(getInstance(), this.generatedId, this.state, getPersister(), (EventSource)getSession());
+      for (int i = 0; i < postListeners.length; i++) {
+        postListeners[i].onPostInsert(postEvent);
+      }
+    }
+  }
+
+  private boolean preInsert()
+  {
+    PreInsertEventListener[] preListeners = getSession().getListeners().getPreInsertEventListeners();
+    boolean veto = false;
+    if (preListeners.length > 0)
+    {
+      PreInsertEvent preEvent = new PreInsertEvent(getInstance(), null, this.state, getPersister(), (EventSource)getSession());
+      for (int i = 0; i < preListeners.length; i++) {
+        veto = (preListeners[i].onPreInsert(preEvent)) || (veto);
+      }
+    }
+    return veto;
+  }
+
+  public void afterTransactionCompletion(boolean success)
+    throws HibernateException
+  {
+    postCommitInsert();
+  }
+
+  public boolean hasAfterTransactionCompletion()
+  {
+    return hasPostCommitEventListeners();
+  }
+
+  protected boolean hasPostCommitEventListeners()
+  {
+    return getSession().getListeners().getPostCommitInsertEventListeners().length > 0;
+  }
+
+  public final Serializable getGeneratedId()
+  {
+    return this.generatedId;
+  }
+
+  public EntityKey getDelayedEntityKey()
+  {
+    return this.delayedEntityKey;
+  }
+
+  private synchronized EntityKey generateDelayedEntityKey()
+  {
+    if (!this.isDelayed) {
+      throw new AssertionFailure("cannot request delayed entity-key for non-delayed post-insert-id generation");
+    }
+    return new EntityKey(new DelayedPostInsertIdentifier(), getPersister(), getSession().getEntityMode());
+  }
+}
@@ -0,0 +1,220 @@
+package org.hibernate.cfg;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.WeakHashMap;
+
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.util.PropertiesHelper;
+
+/**
+ * Names and lookup of the tuning properties that are not part of the stock
+ * {@link Settings}. {@link SettingsFactory} keeps the properties it built the
+ * settings of a session factory from, and values are read from those, so
+ * they can be set in <tt>hibernate.cfg.xml</tt> like any other setting and
+ * differ between factories.
+ */
+public final class ExtendedEnvironment {
+	/**
+	 * Maximum number of prepared statements kept open per JDBC connection.
+	 * <tt>0</tt> (the default) disables the statement cache.
+	 */
+	public static final String STATEMENT_CACHE_SIZE = "hibernate.jdbc.statement_cache_size";
+
+	/**
+	 * Number of JDBC batches, one per distinct SQL string, that may be open at
+	 * the same time, so that switching between statements does not close and
+	 * prepare them again. Rows of tables that may be joined by a foreign key
+	 * still reach the database in the order they were added: adding a row to
+	 * a batch first executes the open batches through the last one opened
+	 * after it for such a table. The default of <tt>1</tt> keeps a single
+	 * batch.
+	 */
+	public static final String MAX_OPEN_BATCHES = "hibernate.jdbc.max_open_batches";
+
+	/**
+	 * Let the batch size of each SQL string float between the configured
+	 * minimum and maximum to maximise rows per second. The JDBC batch size is
+	 * the starting point.
+	 */
+	public static final String ADAPTIVE_BATCH_SIZE = "hibernate.jdbc.batch_size.adaptive";
+
+	public static final String ADAPTIVE_BATCH_SIZE_MIN = "hibernate.jdbc.batch_size.min";
+
+	public static final String ADAPTIVE_BATCH_SIZE_MAX = "hibernate.jdbc.batch_size.max";
+
+	/**
+	 * Execution time, in milliseconds, above which an adaptive batch size is
+	 * always reduced. <tt>0</tt> means no limit.
+	 */
+	public static final String ADAPTIVE_BATCH_MAX_LATENCY = "hibernate.jdbc.batch_size.max_latency";
+
+	/**
+	 * Execute completed JDBC batches on a background thread while the session
+	 * binds the next one. Batches still run one at a time and in order; the
+	 * JDBC driver must tolerate a second thread using the connection.
+	 */
+	public static final String PIPELINED_FLUSH = "hibernate.jdbc.pipelined_flush";
+
+	/**
+	 * JMX object name under which the extended statistics of each session
+	 * factory are registered, with a <tt>sessionFactory</tt> key added that
+	 * holds the factory name or UUID. Not registered when unset.
+	 */
+	public static final String STATISTICS_OBJECT_NAME = "hibernate.jmx.extended_statistics";
+
+	/**
+	 * Send batched single row inserts as multi row <tt>INSERT</tt> statements
+	 * on dialects that support them (H2, PostgreSQL, MySQL, Oracle). Only used
+	 * when JDBC batching is enabled.
+	 */
+	public static final String MULTI_ROW_INSERT = "hibernate.jdbc.multi_row_insert";
+
+	/**
+	 * Maximum number of rows per multi row insert. The dialect's bind
+	 * parameter limit may lower it further. Defaults to <tt>100</tt>.
+	 */
+	public static final String MULTI_ROW_INSERT_MAX_ROWS = "hibernate.jdbc.multi_row_insert.max_rows";
+
+	/**
+	 * Delay the inserts of entities with identity columns made through
+	 * <tt>persist()</tt> until flush, also inside a transaction, and execute
+	 * consecutive inserts of the same entity as one JDBC batch, reading the
+	 * keys back through <tt>getGeneratedKeys()</tt>. A batch for which the
+	 * driver returns another number of keys is rolled back to a savepoint and
+	 * inserted row by row. <tt>save()</tt> still inserts immediately because
+	 * it must return the identifier.
+	 */
+	public static final String BATCH_IDENTITY_INSERTS = "hibernate.jdbc.batch_identity_inserts";
+
+	/**
+	 * Order entity deletions by entity and foreign key dependencies, children
+	 * first, the way <tt>hibernate.order_inserts</tt> orders insertions.
+	 */
+	public static final String ORDER_DELETES = "hibernate.order_deletes";
+
+	/**
+	 * Number of entities saved, persisted or deleted, or of queued insertions
+	 * and deletions, after which the next write of a session first flushes and
+	 * evicts the entities written before it. Keeps the heap flat during long
+	 * imports. <tt>0</tt> (the default) never flushes early. Can be changed
+	 * per session.
+	 */
+	public static final String MAX_QUEUED_ACTIONS = "hibernate.jdbc.max_queued_actions";
+
+	/**
+	 * Fold updates of entities inserted in the same flush into their insert
+	 * and drop inserts followed by a delete. Defaults to <tt>false</tt>.
+	 */
+	public static final String COALESCE_ACTIONS = "hibernate.jdbc.coalesce_actions";
+
+	/**
+	 * Open sessions read-only by default, see
+	 * <tt>SessionImpl.setDefaultReadOnly()</tt>. Defaults to <tt>false</tt>.
+	 */
+	public static final String DEFAULT_READ_ONLY = "hibernate.session.default_read_only";
+
+	/**
+	 * Time the phases of every flush, see {@link org.hibernate.stat.FlushProfile}.
+	 * Defaults to <tt>false</tt>.
+	 */
+	public static final String FLUSH_PROFILING = "hibernate.flush.profiling";
+
+	/**
+	 * Largest number of identifiers in the <tt>in</tt> list of a query issued
+	 * by <tt>SessionImpl.getMany()</tt>. Defaults to the limit of the
+	 * dialect, <tt>1000</tt> for Oracle.
+	 */
+	public static final String MAX_IN_LIST_SIZE = "hibernate.jdbc.max_in_list_size";
+
+	/**
+	 * Run the per implementor queries of a polymorphic criteria query that
+	 * only returns scalar values concurrently, each on a connection of its
+	 * own, when the session has no transaction or pending changes. Defaults
+	 * to <tt>false</tt>.
+	 */
+	public static final String CONCURRENT_CRITERIA_IMPLEMENTORS = "hibernate.criteria.concurrent_implementors";
+
+	/**
+	 * Number of rows the iterator of <tt>Session.iterate()</tt> reads ahead
+	 * to load their entities with one query, for example <tt>100</tt>. The
+	 * default of <tt>0</tt> loads each entity on its own, as before.
+	 */
+	public static final String ITERATE_PREFETCH_SIZE = "hibernate.query.iterate_prefetch_size";
+
+	/**
+	 * Number of connections {@link org.hibernate.connection.PooledConnectionProvider}
+	 * opens when the session factory starts and keeps idle afterwards.
+	 */
+	public static final String POOL_MIN_IDLE = "hibernate.connection.pool.min_idle";
+
+	/**
+	 * Milliseconds a thread waits for a pooled connection before failing.
+	 * Defaults to <tt>30000</tt>.
+	 */
+	public static final String POOL_MAX_WAIT = "hibernate.connection.pool.max_wait";
+
+	/**
+	 * Milliseconds a pooled connection may sit idle before it is checked with
+	 * <tt>Connection.isValid()</tt> on borrow. Defaults to <tt>500</tt>.
+	 */
+	public static final String POOL_VALIDATION_INTERVAL = "hibernate.connection.pool.validation_interval";
+
+	/**
+	 * Seconds <tt>Connection.isValid()</tt> may take. Defaults to <tt>1</tt>.
+	 */
+	public static final String POOL_VALIDATION_TIMEOUT = "hibernate.connection.pool.validation_timeout";
+
+	/**
+	 * Milliseconds after which a connection that has not been returned is
+	 * logged as leaked, with the stack trace of its borrower. <tt>0</tt> (the
+	 * default) disables leak detection.
+	 */
+	public static final String POOL_LEAK_TIMEOUT = "hibernate.connection.pool.leak_timeout";
+
+	/**
+	 * Prefix of the settings of the replica pool of
+	 * {@link org.hibernate.connection.RoutingConnectionProvider}, for example
+	 * <tt>hibernate.connection.replica.url</tt>. Settings not given for the
+	 * replica are taken from the primary.
+	 */
+	public static final String REPLICA_PREFIX = "hibernate.connection.replica.";
+
+	private static final Map<Settings, Properties> SETTINGS_PROPERTIES = new WeakHashMap<Settings, Properties>();
+
+	private ExtendedEnvironment() {
+	}
+
+	public static int getInt(SessionFactoryImplementor factory, String propertyName, int defaultValue) {
+		return PropertiesHelper.getInt(propertyName, getProperties(factory), defaultValue);
+	}
+
+	public static boolean getBoolean(SessionFactoryImplementor factory, String propertyName, boolean defaultValue) {
+		return PropertiesHelper.getBoolean(propertyName, getProperties(factory), defaultValue);
+	}
+
+	public static String getString(SessionFactoryImplementor factory, String propertyName, String defaultValue) {
+		return PropertiesHelper.getString(propertyName, getProperties(factory), defaultValue);
+	}
+
+	/**
+	 * The properties the settings of the given factory were built from, or
+	 * those of {@link Environment} for settings not built by
+	 * {@link SettingsFactory}.
+	 */
+	public static Properties getProperties(SessionFactoryImplementor factory) {
+		Properties properties;
+		synchronized (SETTINGS_PROPERTIES) {
+			properties = SETTINGS_PROPERTIES.get(factory.getSettings());
+		}
+		return (properties == null) ? Environment.getProperties() : properties;
+	}
+
+	static void settingsBuilt(Settings settings, Properties properties) {
+		Properties copy = new Properties();
+		copy.putAll(properties);
+		synchronized (SETTINGS_PROPERTIES) {
+			SETTINGS_PROPERTIES.put(settings, copy);
+		}
+	}
+}
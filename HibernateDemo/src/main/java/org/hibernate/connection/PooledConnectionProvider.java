@@ -0,0 +1,415 @@
+package org.hibernate.connection;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.Environment;
+import org.hibernate.cfg.ExtendedEnvironment;
+import org.hibernate.stat.LogHistogram;
+import org.hibernate.util.PropertiesHelper;
+import org.hibernate.util.ReflectHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A connection pool for production use, configured with the same
+ * <tt>hibernate.connection.*</tt> properties as
+ * {@link DriverManagerConnectionProvider}.
+ * <p>
+ * Borrowing takes a permit from a fair semaphore sized
+ * <tt>hibernate.connection.pool_size</tt> and pops the most recently returned
+ * connection from a lock free deque; waiters are served in arrival order. The
+ * pool is warmed with <tt>hibernate.connection.pool.min_idle</tt> connections
+ * at start, connections idle for longer than the validation interval are
+ * checked with <tt>isValid()</tt>, and connections held longer than the leak
+ * timeout are reported. Returned connections are rolled back and get their
+ * auto-commit mode, isolation level and read-only flag restored.
+ */
+public class PooledConnectionProvider implements ConnectionProvider {
+	private static final Logger log = LoggerFactory.getLogger(PooledConnectionProvider.class);
+
+	private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+
+	private String url;
+	private Properties connectionProps;
+	private Integer isolation;
+	private boolean autocommit;
+	private int maxSize;
+	private int minIdle;
+	private long maxWaitNanos;
+	private long validationIntervalMillis;
+	private int validationTimeout;
+	private long leakTimeoutMillis;
+
+	private Semaphore permits;
+	private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<PooledConnection>();
+	private final Map<Connection, PooledConnection> borrowed = new ConcurrentHashMap<Connection, PooledConnection>();
+	private final AtomicInteger totalCount = new AtomicInteger();
+	private volatile boolean closed;
+	private ScheduledThreadPoolExecutor leakDetector;
+
+	private final LogHistogram waitTimes = new LogHistogram();
+	private final LongAdder timeoutCount = new LongAdder();
+	private final LongAdder createdCount = new LongAdder();
+	private final LongAdder destroyedCount = new LongAdder();
+	private final LongAdder leakCount = new LongAdder();
+
+	public void configure(Properties props) throws HibernateException {
+		String driverClass = props.getProperty(Environment.DRIVER);
+		if (driverClass == null) {
+			log.warn("no JDBC Driver class was specified by property " + Environment.DRIVER);
+		} else {
+			try {
+				ReflectHelper.classForName(driverClass);
+			} catch (ClassNotFoundException cnfe) {
+				String msg = "JDBC Driver class not found: " + driverClass;
+				log.error(msg, cnfe);
+				throw new HibernateException(msg, cnfe);
+			}
+		}
+		this.url = props.getProperty(Environment.URL);
+		if (this.url == null) {
+			String msg = "JDBC URL was not specified by property " + Environment.URL;
+			log.error(msg);
+			throw new HibernateException(msg);
+		}
+		this.connectionProps = ConnectionProviderFactory.getConnectionProperties(props);
+		Iterator<Object> keys = this.connectionProps.keySet().iterator();
+		while (keys.hasNext()) {
+			String key = (String) keys.next();
+			if (key.startsWith("pool.") || key.startsWith("replica.")) {
+				// settings of this provider, not of the driver
+				keys.remove();
+			}
+		}
+		this.isolation = PropertiesHelper.getInteger(Environment.ISOLATION, props);
+		this.autocommit = PropertiesHelper.getBoolean(Environment.AUTOCOMMIT, props);
+
+		this.maxSize = Math.max(1, PropertiesHelper.getInt(Environment.POOL_SIZE, props, 20));
+		this.minIdle = Math.min(this.maxSize, PropertiesHelper.getInt(ExtendedEnvironment.POOL_MIN_IDLE, props, 0));
+		this.maxWaitNanos = TimeUnit.MILLISECONDS
+				.toNanos(PropertiesHelper.getInt(ExtendedEnvironment.POOL_MAX_WAIT, props, 30000));
+		this.validationIntervalMillis = PropertiesHelper.getInt(ExtendedEnvironment.POOL_VALIDATION_INTERVAL, props,
+				500);
+		this.validationTimeout = PropertiesHelper.getInt(ExtendedEnvironment.POOL_VALIDATION_TIMEOUT, props, 1);
+		this.leakTimeoutMillis = PropertiesHelper.getInt(ExtendedEnvironment.POOL_LEAK_TIMEOUT, props, 0);
+		this.permits = new Semaphore(this.maxSize, true);
+
+		log.info("using PooledConnectionProvider: pool size " + this.maxSize + ", minimum idle " + this.minIdle
+				+ ", url " + this.url);
+
+		for (int i = 0; i < this.minIdle; i++) {
+			try {
+				this.idle.offerFirst(newPooledConnection());
+			} catch (SQLException sqle) {
+				log.warn("Could not warm up the connection pool, opened " + i + " of " + this.minIdle, sqle);
+				break;
+			}
+		}
+
+		if (this.leakTimeoutMillis > 0L) {
+			final String name = "hibernate-pool-leak-detector-" + POOL_COUNT.incrementAndGet();
+			this.leakDetector = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, name);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			long period = Math.max(1L, this.leakTimeoutMillis / 2);
+			this.leakDetector.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					detectLeaks();
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public Connection getConnection() throws SQLException {
+		if (this.closed) {
+			throw new SQLException("connection pool is closed");
+		}
+		long start = System.nanoTime();
+		// the timed acquire honours fairness, the untimed tryAcquire() would barge
+		boolean acquired;
+		try {
+			acquired = this.permits.tryAcquire(this.maxWaitNanos, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("interrupted while waiting for a pooled connection");
+		}
+		if (!acquired) {
+			this.timeoutCount.increment();
+			throw new SQLException("timed out after " + TimeUnit.NANOSECONDS.toMillis(this.maxWaitNanos)
+					+ "ms waiting for a connection, pool size " + this.maxSize + ", in use " + this.borrowed.size());
+		}
+		this.waitTimes.record(System.nanoTime() - start);
+		try {
+			PooledConnection pooled = takeIdle();
+			if (pooled == null) {
+				pooled = newPooledConnection();
+			}
+			pooled.borrowed(this.leakTimeoutMillis > 0L);
+			this.borrowed.put(pooled.connection, pooled);
+			return pooled.connection;
+		} catch (SQLException sqle) {
+			this.permits.release();
+			throw sqle;
+		} catch (RuntimeException re) {
+			this.permits.release();
+			throw re;
+		}
+	}
+
+	/**
+	 * Pop the most recently used idle connection, discarding the ones that
+	 * fail validation.
+	 */
+	private PooledConnection takeIdle() {
+		PooledConnection pooled;
+		while ((pooled = this.idle.pollFirst()) != null) {
+			if (System.currentTimeMillis() - pooled.lastUsed < this.validationIntervalMillis) {
+				return pooled;
+			}
+			boolean valid;
+			try {
+				valid = pooled.connection.isValid(this.validationTimeout);
+			} catch (SQLException sqle) {
+				valid = false;
+			}
+			if (valid) {
+				return pooled;
+			}
+			log.debug("discarding invalid pooled connection");
+			destroy(pooled.connection);
+		}
+		return null;
+	}
+
+	public void closeConnection(Connection conn) throws SQLException {
+		PooledConnection pooled = this.borrowed.remove(conn);
+		if (pooled == null) {
+			log.warn("closing a connection that was not borrowed from this pool");
+			conn.close();
+			return;
+		}
+		try {
+			if (this.closed) {
+				destroy(conn);
+			} else if (!reset(pooled)) {
+				destroy(conn);
+			} else {
+				pooled.returned();
+				this.idle.offerFirst(pooled);
+				if (this.closed && this.idle.remove(pooled)) {
+					destroy(conn);
+				}
+			}
+		} finally {
+			this.permits.release();
+		}
+	}
+
+	/**
+	 * Roll back whatever the borrower left uncommitted and restore the
+	 * auto-commit mode, isolation level and read-only flag the connection was
+	 * created with. Returns false if the connection could not be reset and
+	 * must be discarded.
+	 */
+	private boolean reset(PooledConnection pooled) {
+		Connection conn = pooled.connection;
+		try {
+			if (!conn.getAutoCommit()) {
+				conn.rollback();
+			}
+			if (conn.getAutoCommit() != this.autocommit) {
+				conn.setAutoCommit(this.autocommit);
+			}
+			if (conn.getTransactionIsolation() != pooled.isolation) {
+				conn.setTransactionIsolation(pooled.isolation);
+			}
+			if (conn.isReadOnly() != pooled.readOnly) {
+				conn.setReadOnly(pooled.readOnly);
+			}
+			return true;
+		} catch (SQLException sqle) {
+			log.warn("could not reset a returned connection, discarding it", sqle);
+			return false;
+		}
+	}
+
+	private PooledConnection newPooledConnection() throws SQLException {
+		Connection conn = openConnection();
+		try {
+			return new PooledConnection(conn, conn.getTransactionIsolation(), conn.isReadOnly());
+		} catch (SQLException sqle) {
+			destroy(conn);
+			throw sqle;
+		}
+	}
+
+	private Connection openConnection() throws SQLException {
+		Connection conn = DriverManager.getConnection(this.url, this.connectionProps);
+		try {
+			if (this.isolation != null) {
+				conn.setTransactionIsolation(this.isolation.intValue());
+			}
+			if (conn.getAutoCommit() != this.autocommit) {
+				conn.setAutoCommit(this.autocommit);
+			}
+		} catch (SQLException sqle) {
+			conn.close();
+			throw sqle;
+		}
+		this.totalCount.incrementAndGet();
+		this.createdCount.increment();
+		if (log.isDebugEnabled()) {
+			log.debug("created connection to: " + this.url + ", pool holds " + this.totalCount.get());
+		}
+		return conn;
+	}
+
+	private void destroy(Connection conn) {
+		this.totalCount.decrementAndGet();
+		this.destroyedCount.increment();
+		try {
+			conn.close();
+		} catch (SQLException sqle) {
+			log.warn("problem closing pooled connection", sqle);
+		}
+	}
+
+	private void detectLeaks() {
+		long now = System.currentTimeMillis();
+		Iterator<PooledConnection> iter = this.borrowed.values().iterator();
+		while (iter.hasNext()) {
+			PooledConnection pooled = iter.next();
+			if (!pooled.leakReported && (now - pooled.borrowedAt > this.leakTimeoutMillis)) {
+				pooled.leakReported = true;
+				this.leakCount.increment();
+				log.warn("connection held for more than " + this.leakTimeoutMillis + "ms, possible leak",
+						pooled.borrower);
+			}
+		}
+	}
+
+	public void close() {
+		log.info("cleaning up connection pool: " + this.url);
+		this.closed = true;
+		if (this.leakDetector != null) {
+			this.leakDetector.shutdownNow();
+		}
+		PooledConnection pooled;
+		while ((pooled = this.idle.pollFirst()) != null) {
+			destroy(pooled.connection);
+		}
+		if (!this.borrowed.isEmpty()) {
+			log.warn(this.borrowed.size() + " connections still in use, they are closed when returned");
+		}
+	}
+
+	public boolean supportsAggressiveRelease() {
+		return false;
+	}
+
+	/**
+	 * Is the given connection currently borrowed from this pool?
+	 */
+	public boolean isBorrowed(Connection conn) {
+		return this.borrowed.containsKey(conn);
+	}
+
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	public int getActiveCount() {
+		return this.borrowed.size();
+	}
+
+	public int getIdleCount() {
+		return this.idle.size();
+	}
+
+	public int getTotalCount() {
+		return this.totalCount.get();
+	}
+
+	/**
+	 * Number of threads currently waiting for a connection.
+	 */
+	public int getWaitingCount() {
+		return this.permits.getQueueLength();
+	}
+
+	public long getBorrowCount() {
+		return this.waitTimes.getCount();
+	}
+
+	/**
+	 * Histogram of the nanoseconds spent waiting for a connection.
+	 */
+	public long[] getWaitTimeHistogram() {
+		return this.waitTimes.getCounts();
+	}
+
+	public long getTotalWaitNanos() {
+		return this.waitTimes.getTotal();
+	}
+
+	public long getTimeoutCount() {
+		return this.timeoutCount.sum();
+	}
+
+	public long getCreatedCount() {
+		return this.createdCount.sum();
+	}
+
+	public long getDestroyedCount() {
+		return this.destroyedCount.sum();
+	}
+
+	public long getLeakCount() {
+		return this.leakCount.sum();
+	}
+
+	private static final class PooledConnection {
+		private final Connection connection;
+		private final int isolation;
+		private final boolean readOnly;
+		private long lastUsed = System.currentTimeMillis();
+		private volatile long borrowedAt;
+		private volatile Throwable borrower;
+		private volatile boolean leakReported;
+
+		PooledConnection(Connection connection, int isolation, boolean readOnly) {
+			this.connection = connection;
+			this.isolation = isolation;
+			this.readOnly = readOnly;
+		}
+
+		void borrowed(boolean trackBorrower) {
+			this.borrowedAt = System.currentTimeMillis();
+			this.borrower = trackBorrower ? new Throwable("connection borrowed here") : null;
+			this.leakReported = false;
+		}
+
+		void returned() {
+			this.lastUsed = System.currentTimeMillis();
+			this.borrower = null;
+		}
+	}
+}
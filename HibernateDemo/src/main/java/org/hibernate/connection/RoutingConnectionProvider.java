@@ -0,0 +1,111 @@
+package org.hibernate.connection;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.Environment;
+import org.hibernate.cfg.ExtendedEnvironment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Two {@link PooledConnectionProvider} pools, one for the primary database
+ * and one for a read replica configured with
+ * <tt>hibernate.connection.replica.*</tt> settings. {@link #getConnection()}
+ * always returns a primary connection; sessions and transactions marked
+ * read-only get theirs from {@link #getReplicaConnection()}. Without a replica URL every
+ * connection comes from the primary.
+ */
+public class RoutingConnectionProvider implements ConnectionProvider {
+	private static final Logger log = LoggerFactory.getLogger(RoutingConnectionProvider.class);
+
+	private PooledConnectionProvider primary;
+	private PooledConnectionProvider replica;
+
+	public void configure(Properties props) throws HibernateException {
+		Properties primaryProps = new Properties();
+		Properties replicaProps = new Properties();
+		Iterator iter = props.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry entry = (Map.Entry) iter.next();
+			String key = (String) entry.getKey();
+			if (!key.startsWith(ExtendedEnvironment.REPLICA_PREFIX)) {
+				primaryProps.put(key, entry.getValue());
+			}
+		}
+		replicaProps.putAll(primaryProps);
+		iter = props.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry entry = (Map.Entry) iter.next();
+			String key = (String) entry.getKey();
+			if (key.startsWith(ExtendedEnvironment.REPLICA_PREFIX)) {
+				replicaProps.put("hibernate.connection." + key.substring(ExtendedEnvironment.REPLICA_PREFIX.length()),
+						entry.getValue());
+			}
+		}
+
+		this.primary = new PooledConnectionProvider();
+		this.primary.configure(primaryProps);
+		if (props.getProperty(ExtendedEnvironment.REPLICA_PREFIX + "url") == null) {
+			log.warn("no replica configured by property " + ExtendedEnvironment.REPLICA_PREFIX
+					+ "url, read-only sessions use the primary");
+			this.replica = null;
+		} else {
+			log.info("routing read-only sessions to replica: " + replicaProps.getProperty(Environment.URL));
+			this.replica = new PooledConnectionProvider();
+			this.replica.configure(replicaProps);
+		}
+	}
+
+	public Connection getConnection() throws SQLException {
+		return this.primary.getConnection();
+	}
+
+	public Connection getReplicaConnection() throws SQLException {
+		return this.replica == null ? this.primary.getConnection() : this.replica.getConnection();
+	}
+
+	/**
+	 * Was the given connection borrowed from the replica pool?
+	 */
+	public boolean isReplicaConnection(Connection conn) {
+		return (this.replica != null) && this.replica.isBorrowed(conn);
+	}
+
+	public void closeConnection(Connection conn) throws SQLException {
+		if (isReplicaConnection(conn)) {
+			this.replica.closeConnection(conn);
+		} else {
+			this.primary.closeConnection(conn);
+		}
+	}
+
+	public void close() throws HibernateException {
+		try {
+			this.primary.close();
+		} finally {
+			if (this.replica != null) {
+				this.replica.close();
+			}
+		}
+	}
+
+	public boolean supportsAggressiveRelease() {
+		return false;
+	}
+
+	public PooledConnectionProvider getPrimary() {
+		return this.primary;
+	}
+
+	/**
+	 * The replica pool, or <tt>null</tt> if no replica is configured.
+	 */
+	public PooledConnectionProvider getReplica() {
+		return this.replica;
+	}
+}
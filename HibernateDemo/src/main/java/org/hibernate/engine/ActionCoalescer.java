@@ -0,0 +1,178 @@
+package org.hibernate.engine;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hibernate.AssertionFailure;
+import org.hibernate.action.EntityDeleteAction;
+import org.hibernate.action.EntityInsertAction;
+import org.hibernate.action.EntityUpdateAction;
+import org.hibernate.action.Executable;
+import org.hibernate.event.EventListeners;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.Type;
+
+/**
+ * Merges the queued actions of entities that are inserted and then updated
+ * or deleted in the same flush. An update is folded into the insert, which
+ * then writes the final state, and an insert followed by a delete is
+ * dropped together with the delete. Only actions without side effects
+ * besides their SQL are merged: the entity has no version, generated
+ * properties or collections, no update or delete listeners are registered,
+ * and a folded update only changes insertable, non association properties
+ * so the insert order stays valid.
+ */
+final class ActionCoalescer {
+	private static final Field UPDATE_STATE = field("state");
+	private static final Field UPDATE_DIRTY_FIELDS = field("dirtyFields");
+
+	private ActionCoalescer() {
+	}
+
+	/**
+	 * Merge the actions in the given queues and return the actions removed
+	 * from them, one per statement saved.
+	 */
+	static List<Executable> coalesce(List insertions, List updates, List deletions, SessionImplementor session) {
+		if (insertions.isEmpty() || (updates.isEmpty() && deletions.isEmpty())) {
+			return Collections.emptyList();
+		}
+		EventListeners listeners = session.getListeners();
+		boolean foldUpdates = (listeners.getPreUpdateEventListeners().length == 0)
+				&& (listeners.getPostUpdateEventListeners().length == 0)
+				&& (listeners.getPostCommitUpdateEventListeners().length == 0);
+		boolean dropDeletes = (listeners.getPreDeleteEventListeners().length == 0)
+				&& (listeners.getPostDeleteEventListeners().length == 0)
+				&& (listeners.getPostCommitDeleteEventListeners().length == 0);
+		if (!foldUpdates && !dropDeletes) {
+			return Collections.emptyList();
+		}
+		Map<Object, EntityInsertAction> inserts = new IdentityHashMap<Object, EntityInsertAction>();
+		for (int i = 0; i < insertions.size(); i++) {
+			Object action = insertions.get(i);
+			if ((action instanceof EntityInsertAction) && isCoalescable(((EntityInsertAction) action).getPersister())) {
+				EntityInsertAction insert = (EntityInsertAction) action;
+				inserts.put(insert.getInstance(), insert);
+			}
+		}
+		if (inserts.isEmpty()) {
+			return Collections.emptyList();
+		}
+		Set<Object> removed = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		if (foldUpdates) {
+			for (int i = 0; i < updates.size(); i++) {
+				EntityUpdateAction update = (EntityUpdateAction) updates.get(i);
+				EntityInsertAction insert = inserts.get(update.getInstance());
+				if ((insert != null) && fold(insert, update)) {
+					removed.add(update);
+				}
+			}
+		}
+		if (dropDeletes) {
+			for (int i = 0; i < deletions.size(); i++) {
+				EntityDeleteAction delete = (EntityDeleteAction) deletions.get(i);
+				EntityInsertAction insert = inserts.remove(delete.getInstance());
+				if (insert != null) {
+					forget(delete, session);
+					removed.add(delete);
+					removed.add(insert);
+				}
+			}
+		}
+		if (removed.isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<Executable> result = new ArrayList<Executable>(removed.size());
+		remove(insertions, removed, result);
+		remove(updates, removed, result);
+		remove(deletions, removed, result);
+		return result;
+	}
+
+	private static boolean isCoalescable(EntityPersister persister) {
+		return persister.isMutable() && !persister.isVersioned() && !persister.hasCollections()
+				&& !persister.hasInsertGeneratedProperties() && !persister.hasUpdateGeneratedProperties();
+	}
+
+	/**
+	 * Copy the changed properties of the update into the state of the
+	 * insert, which is also the loaded state of the entity entry.
+	 */
+	private static boolean fold(EntityInsertAction insert, EntityUpdateAction update) {
+		EntityPersister persister = insert.getPersister();
+		Object[] state = (Object[]) get(UPDATE_STATE, update);
+		int[] dirtyFields = (int[]) get(UPDATE_DIRTY_FIELDS, update);
+		if (dirtyFields == null) {
+			dirtyFields = new int[state.length];
+			for (int i = 0; i < dirtyFields.length; i++) {
+				dirtyFields[i] = i;
+			}
+		}
+		boolean[] insertable = persister.getPropertyInsertability();
+		Type[] types = persister.getPropertyTypes();
+		for (int i = 0; i < dirtyFields.length; i++) {
+			int property = dirtyFields[i];
+			if (!insertable[property] || types[property].isAssociationType() || types[property].isComponentType()) {
+				return false;
+			}
+		}
+		Object[] insertState = insert.getState();
+		for (int i = 0; i < dirtyFields.length; i++) {
+			insertState[dirtyFields[i]] = state[dirtyFields[i]];
+		}
+		return true;
+	}
+
+	/**
+	 * Remove an entity that was never written from the persistence context,
+	 * as executing its delete would have.
+	 */
+	private static void forget(EntityDeleteAction delete, SessionImplementor session) {
+		PersistenceContext persistenceContext = session.getPersistenceContext();
+		EntityEntry entry = persistenceContext.removeEntry(delete.getInstance());
+		if (entry == null) {
+			throw new AssertionFailure("possible nonthreadsafe access to session");
+		}
+		entry.postDelete();
+		EntityKey key = new EntityKey(entry.getId(), entry.getPersister(), session.getEntityMode());
+		persistenceContext.removeEntity(key);
+		persistenceContext.removeProxy(key);
+	}
+
+	private static void remove(List actions, Set<Object> removed, List<Executable> result) {
+		int kept = 0;
+		int size = actions.size();
+		for (int i = 0; i < size; i++) {
+			Object action = actions.get(i);
+			if (removed.contains(action)) {
+				result.add((Executable) action);
+			} else {
+				actions.set(kept++, action);
+			}
+		}
+		actions.subList(kept, size).clear();
+	}
+
+	private static Field field(String name) {
+		try {
+			Field field = EntityUpdateAction.class.getDeclaredField(name);
+			field.setAccessible(true);
+			return field;
+		} catch (NoSuchFieldException e) {
+			throw new AssertionFailure("EntityUpdateAction." + name + " not found", e);
+		}
+	}
+
+	private static Object get(Field field, Object target) {
+		try {
+			return field.get(target);
+		} catch (IllegalAccessException e) {
+			throw new AssertionFailure("could not read " + field.getName() + " of " + target, e);
+		}
+	}
+}
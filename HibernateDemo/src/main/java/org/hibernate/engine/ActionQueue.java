@@ -5,10 +5,12 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import org.hibernate.AssertionFailure;
@@ -17,17 +19,28 @@ import org.hibernate.action.BulkOperationCleanupAction;
 import org.hibernate.action.CollectionRecreateAction;
 import org.hibernate.action.CollectionRemoveAction;
 import org.hibernate.action.CollectionUpdateAction;
+import org.hibernate.action.EntityAction;
 import org.hibernate.action.EntityDeleteAction;
 import org.hibernate.action.EntityIdentityInsertAction;
 import org.hibernate.action.EntityInsertAction;
 import org.hibernate.action.EntityUpdateAction;
 import org.hibernate.action.Executable;
 import org.hibernate.cache.CacheException;
+import org.hibernate.cache.Timestamper;
 import org.hibernate.cache.UpdateTimestampsCache;
+import org.hibernate.cfg.ExtendedEnvironment;
 import org.hibernate.cfg.Settings;
+import org.hibernate.jdbc.AbstractBatcher;
 import org.hibernate.jdbc.Batcher;
 import org.hibernate.metadata.ClassMetadata;
 import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.persister.entity.IdentityInsertBatch;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.proxy.LazyInitializer;
+import org.hibernate.stat.ExtendedStatisticsImpl;
+import org.hibernate.stat.FlushProfile;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.ForeignKeyDirection;
 import org.hibernate.type.Type;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,6 +49,9 @@ public class ActionQueue
 {
   private static final Logger log = LoggerFactory.getLogger(ActionQueue.class);
   private static final int INIT_QUEUE_LIST_SIZE = 5;
+  private static final int SORT_INSERTS = 0;
+  private static final int SORT_UPDATES = 1;
+  private static final int SORT_DELETES = 2;
   private SessionImplementor session;
   private ArrayList insertions;
   private ArrayList deletions;
@@ -44,10 +60,21 @@ public class ActionQueue
   private ArrayList collectionUpdates;
   private ArrayList collectionRemovals;
   private ArrayList executions;
+  private HashMap querySpaceCounts;
+  private HashMap invalidatedSpaces;
+  private final boolean batchIdentityInserts;
+  private final boolean orderDeletes;
+  private final boolean coalesceActions;
+  private FlushProfile flushProfile;
+  private ParallelInsertExecutor parallelInserts;
+  private int executeCount;
   
   public ActionQueue(SessionImplementor session)
   {
     this.session = session;
+    this.batchIdentityInserts = ExtendedEnvironment.getBoolean(session.getFactory(), ExtendedEnvironment.BATCH_IDENTITY_INSERTS, false);
+    this.orderDeletes = ExtendedEnvironment.getBoolean(session.getFactory(), ExtendedEnvironment.ORDER_DELETES, false);
+    this.coalesceActions = ExtendedEnvironment.getBoolean(session.getFactory(), ExtendedEnvironment.COALESCE_ACTIONS, false);
     init();
   }
   
@@ -62,6 +89,9 @@ public class ActionQueue
     this.collectionUpdates = new ArrayList(5);
     
     this.executions = new ArrayList(15);
+    
+    this.querySpaceCounts = new HashMap();
+    this.invalidatedSpaces = new HashMap();
   }
   
   public void clear()
@@ -73,41 +103,50 @@ public class ActionQueue
     this.collectionCreations.clear();
     this.collectionRemovals.clear();
     this.collectionUpdates.clear();
+    
+    this.querySpaceCounts.clear();
   }
   
   public void addAction(EntityInsertAction action)
   {
     this.insertions.add(action);
+    addQuerySpaces(action);
   }
   
   public void addAction(EntityDeleteAction action)
   {
     this.deletions.add(action);
+    addQuerySpaces(action);
   }
   
   public void addAction(EntityUpdateAction action)
   {
     this.updates.add(action);
+    addQuerySpaces(action);
   }
   
   public void addAction(CollectionRecreateAction action)
   {
     this.collectionCreations.add(action);
+    addQuerySpaces(action);
   }
   
   public void addAction(CollectionRemoveAction action)
   {
     this.collectionRemovals.add(action);
+    addQuerySpaces(action);
   }
   
   public void addAction(CollectionUpdateAction action)
   {
     this.collectionUpdates.add(action);
+    addQuerySpaces(action);
   }
   
   public void addAction(EntityIdentityInsertAction insert)
   {
     this.insertions.add(insert);
+    addQuerySpaces(insert);
   }
   
   public void addAction(BulkOperationCleanupAction cleanupAction)
@@ -115,21 +154,80 @@ public class ActionQueue
     this.executions.add(cleanupAction);
   }
   
+  /**
+   * The profile the phases of this queue are reported to, or null.
+   */
+  public void setFlushProfile(FlushProfile flushProfile)
+  {
+    this.flushProfile = flushProfile;
+  }
+  
+  public FlushProfile getFlushProfile()
+  {
+    return this.flushProfile;
+  }
+  
+  /**
+   * How often the queued actions were executed, which tells whether an
+   * auto-flush check went on to flush: AutoFlushEvent.isFlushRequired() is
+   * only set after the actions were executed, when none are left that
+   * would require a flush.
+   */
+  public int getExecuteCount()
+  {
+    return this.executeCount;
+  }
+  
+  /**
+   * The executor the independent inserts of the next flushes are handed to
+   * instead of being executed on the session's connection, or null.
+   */
+  public void setParallelInsertExecutor(ParallelInsertExecutor parallelInserts)
+  {
+    this.parallelInserts = parallelInserts;
+  }
+  
+  /**
+   * Whether runs of queued identity inserts of one entity are executed as a
+   * JDBC batch, as set by hibernate.jdbc.batch_identity_inserts, so that
+   * persist() queues them also inside a transaction.
+   */
+  public boolean isBatchingIdentityInserts()
+  {
+    return this.batchIdentityInserts;
+  }
+  
   public void executeInserts()
     throws HibernateException
   {
-    executeActions(this.insertions);
+    executeActions(this.insertions, FlushProfile.INSERTIONS);
+    this.session.getBatcher().executeBatch();
   }
   
   public void executeActions()
     throws HibernateException
   {
-    executeActions(this.insertions);
-    executeActions(this.updates);
-    executeActions(this.collectionRemovals);
-    executeActions(this.collectionUpdates);
-    executeActions(this.collectionCreations);
-    executeActions(this.deletions);
+    this.executeCount += 1;
+    if (this.coalesceActions) {
+      coalesceActions();
+    }
+    if (this.parallelInserts != null)
+    {
+      removeQuerySpaces(this.parallelInserts.execute(this.insertions), 0);
+      Set rolledBack = this.parallelInserts.getRolledBackEntities();
+      if (!rolledBack.isEmpty())
+      {
+        removeActionsOf(this.updates, rolledBack);
+        removeActionsOf(this.deletions, rolledBack);
+      }
+    }
+    executeActions(this.insertions, FlushProfile.INSERTIONS);
+    executeActions(this.updates, FlushProfile.UPDATES);
+    executeActions(this.collectionRemovals, FlushProfile.COLLECTION_REMOVALS);
+    executeActions(this.collectionUpdates, FlushProfile.COLLECTION_UPDATES);
+    executeActions(this.collectionCreations, FlushProfile.COLLECTION_CREATIONS);
+    executeActions(this.deletions, FlushProfile.DELETIONS);
+    this.session.getBatcher().executeBatch();
   }
   
   public void prepareActions()
@@ -138,42 +236,85 @@ public class ActionQueue
     prepareActions(this.collectionRemovals);
     prepareActions(this.collectionUpdates);
     prepareActions(this.collectionCreations);
+    if (this.flushProfile != null) {
+      this.flushProfile.phaseEnded(FlushProfile.PREPARE);
+    }
   }
   
+  /**
+   * Run the after completion callbacks of the executed actions, then
+   * invalidate each query space written in the transaction once.
+   */
   public void afterTransactionCompletion(boolean success)
   {
     int size = this.executions.size();
     boolean invalidateQueryCache = this.session.getFactory().getSettings().isQueryCacheEnabled();
-    for (int i = 0; i < size; i++) {
-      try
-      {
-        Executable exec = (Executable)this.executions.get(i);
+    try
+    {
+      for (int i = 0; i < size; i++) {
         try
         {
+          Executable exec = (Executable)this.executions.get(i);
+          if (invalidateQueryCache)
+          {
+            Serializable[] spaces = exec.getPropertySpaces();
+            for (int j = 0; j < spaces.length; j++) {
+              if (!this.invalidatedSpaces.containsKey(spaces[j])) {
+                this.invalidatedSpaces.put(spaces[j], null);
+              }
+            }
+          }
           exec.afterTransactionCompletion(success);
         }
-        finally
+        catch (CacheException ce)
         {
-          if (invalidateQueryCache) {
-            this.session.getFactory().getUpdateTimestampsCache().invalidate(exec.getPropertySpaces());
-          }
+          log.error("could not release a cache lock", ce);
+        }
+        catch (Exception e)
+        {
+          throw new AssertionFailure("Exception releasing cache locks", e);
         }
       }
-      catch (CacheException ce)
-      {
-        log.error("could not release a cache lock", ce);
-      }
-      catch (Exception e)
-      {
-        throw new AssertionFailure("Exception releasing cache locks", e);
+    }
+    finally
+    {
+      this.executions.clear();
+      if ((invalidateQueryCache) && (!this.invalidatedSpaces.isEmpty())) {
+        try
+        {
+          long start = this.flushProfile == null ? 0L : System.nanoTime();
+          this.session.getFactory().getUpdateTimestampsCache().invalidate((Serializable[])this.invalidatedSpaces.keySet().toArray(new Serializable[this.invalidatedSpaces.size()]));
+          if (this.flushProfile != null) {
+            this.flushProfile.cacheInvalidated(System.nanoTime() - start);
+          }
+        }
+        catch (CacheException ce)
+        {
+          log.error("could not invalidate the query cache", ce);
+        }
       }
+      this.invalidatedSpaces.clear();
     }
-    this.executions.clear();
   }
   
   public boolean areTablesToBeUpdated(Set tables)
   {
-    return (areTablesToUpdated(this.updates, tables)) || (areTablesToUpdated(this.insertions, tables)) || (areTablesToUpdated(this.deletions, tables)) || (areTablesToUpdated(this.collectionUpdates, tables)) || (areTablesToUpdated(this.collectionCreations, tables)) || (areTablesToUpdated(this.collectionRemovals, tables));
+    if (this.querySpaceCounts.isEmpty()) {
+      return false;
+    }
+    Iterator iter = tables.iterator();
+    while (iter.hasNext())
+    {
+      Object space = iter.next();
+      if (this.querySpaceCounts.containsKey(space))
+      {
+        if (log.isDebugEnabled()) {
+          log.debug("changes must be flushed to space: " + space);
+        }
+        return true;
+      }
+    }
+    return false;
   }
   
   public boolean areInsertionsOrDeletionsQueued()
@@ -181,46 +322,223 @@ public class ActionQueue
     return (this.insertions.size() > 0) || (this.deletions.size() > 0);
   }
   
-  private static boolean areTablesToUpdated(List executables, Set tablespaces)
+  /**
+   * Count the query spaces of a queued action, so that
+   * {@link #areTablesToBeUpdated(Set)} does not have to walk the queues.
+   */
+  private void addQuerySpaces(Executable executable)
+  {
+    Serializable[] spaces = executable.getPropertySpaces();
+    for (int i = 0; i < spaces.length; i++)
+    {
+      int[] count = (int[])this.querySpaceCounts.get(spaces[i]);
+      if (count == null)
+      {
+        count = new int[1];
+        this.querySpaceCounts.put(spaces[i], count);
+      }
+      count[0] += 1;
+    }
+  }
+  
+  private void removeQuerySpaces(List executables, int start)
   {
     int size = executables.size();
-    for (int j = 0; j < size; j++)
+    for (int i = start; i < size; i++) {
+      removeQuerySpaces((Executable)executables.get(i));
+    }
+  }
+  
+  private void removeQuerySpaces(Executable executable)
+  {
+    Serializable[] spaces = executable.getPropertySpaces();
+    for (int i = 0; i < spaces.length; i++)
     {
-      Serializable[] spaces = ((Executable)executables.get(j)).getPropertySpaces();
-      for (int i = 0; i < spaces.length; i++) {
-        if (tablespaces.contains(spaces[i]))
-        {
-          if (log.isDebugEnabled()) {
-            log.debug("changes must be flushed to space: " + spaces[i]);
-          }
-          return true;
+      int[] count = (int[])this.querySpaceCounts.get(spaces[i]);
+      if (count != null)
+      {
+        count[0] -= 1;
+        if (count[0] <= 0) {
+          this.querySpaceCounts.remove(spaces[i]);
         }
       }
     }
-    return false;
   }
   
-  private void executeActions(List list)
-    throws HibernateException
+  /**
+   * Drop the queued actions of the given entities, whose bulk insert was
+   * rolled back, so there is no row left to update or delete.
+   */
+  private void removeActionsOf(List list, Set entities)
   {
+    int kept = 0;
     int size = list.size();
+    for (int i = 0; i < size; i++)
+    {
+      Object action = list.get(i);
+      if (((action instanceof EntityAction)) && (entities.contains(((EntityAction)action).getInstance()))) {
+        removeQuerySpaces((Executable)action);
+      } else {
+        list.set(kept++, action);
+      }
+    }
+    list.subList(kept, size).clear();
+  }
+  
+  private void addQuerySpaces(List executables)
+  {
+    int size = executables.size();
     for (int i = 0; i < size; i++) {
-      execute((Executable)list.get(i));
+      addQuerySpaces((Executable)executables.get(i));
+    }
+  }
+  
+  /**
+   * Merge inserts with later updates and deletes of the same entity, see
+   * {@link ActionCoalescer}.
+   */
+  private void coalesceActions()
+  {
+    List removed = ActionCoalescer.coalesce(this.insertions, this.updates, this.deletions, this.session);
+    if (removed.isEmpty()) {
+      return;
+    }
+    removeQuerySpaces(removed, 0);
+    if (log.isDebugEnabled()) {
+      log.debug("coalesced " + removed.size() + " queued actions");
+    }
+    ExtendedStatisticsImpl.forFactory(this.session.getFactory()).statementsCoalesced(removed.size());
+    if (this.flushProfile != null) {
+      this.flushProfile.actionsCoalesced(removed.size());
     }
+  }
+  
+  private void executeActions(List list, int phase)
+    throws HibernateException
+  {
+    int size = list.size();
+    for (int i = 0; i < size; i++)
+    {
+      Executable executable = (Executable)list.get(i);
+      if ((this.batchIdentityInserts) && ((executable instanceof EntityIdentityInsertAction)))
+      {
+        int end = identityInsertRunEnd(list, i);
+        if (end - i > 1)
+        {
+          executeIdentityInserts(list.subList(i, end));
+          i = end - 1;
+          continue;
+        }
+      }
+      execute(executable);
+    }
+    if (this.flushProfile != null)
+    {
+      this.flushProfile.actionsExecuted(phase, size);
+      this.flushProfile.phaseEnded(phase);
+    }
+    removeQuerySpaces(list, 0);
     list.clear();
-    this.session.getBatcher().executeBatch();
+    Batcher batcher = this.session.getBatcher();
+    if ((batcher instanceof AbstractBatcher)) {
+      ((AbstractBatcher)batcher).executeBatchAsync();
+    } else {
+      batcher.executeBatch();
+    }
   }
   
   public void execute(Executable executable)
   {
-    boolean lockQueryCache = this.session.getFactory().getSettings().isQueryCacheEnabled();
-    if ((executable.hasAfterTransactionCompletion()) || (lockQueryCache)) {
+    beforeExecute(executable);
+    executable.execute();
+  }
+  
+  /**
+   * Keep the action for its after completion callback, if it has one, and
+   * pre-invalidate the query spaces it writes that were not pre-invalidated
+   * in this transaction yet, or longer ago than half the timeout of the
+   * timestamps cache region. A pre-invalidation lapses after that timeout,
+   * so like the per-action pre-invalidation of stock Hibernate it is only
+   * renewed while the transaction keeps writing.
+   */
+  private void beforeExecute(Executable executable)
+  {
+    if (executable.hasAfterTransactionCompletion()) {
       this.executions.add(executable);
     }
-    if (lockQueryCache) {
-      this.session.getFactory().getUpdateTimestampsCache().preinvalidate(executable.getPropertySpaces());
+    if (this.session.getFactory().getSettings().isQueryCacheEnabled())
+    {
+      UpdateTimestampsCache cache = this.session.getFactory().getUpdateTimestampsCache();
+      Serializable[] spaces = executable.getPropertySpaces();
+      long now = System.currentTimeMillis();
+      long renewAfter = now - cache.getRegion().getTimeout() / Timestamper.ONE_MS / 2;
+      List added = null;
+      for (int i = 0; i < spaces.length; i++)
+      {
+        Long preinvalidated = (Long)this.invalidatedSpaces.get(spaces[i]);
+        if ((preinvalidated == null) || (preinvalidated.longValue() < renewAfter))
+        {
+          this.invalidatedSpaces.put(spaces[i], Long.valueOf(now));
+          if (added == null) {
+            added = new ArrayList(spaces.length);
+          }
+          added.add(spaces[i]);
+        }
+      }
+      if (added != null)
+      {
+        long start = this.flushProfile == null ? 0L : System.nanoTime();
+        cache.preinvalidate((Serializable[])added.toArray(new Serializable[added.size()]));
+        if (this.flushProfile != null) {
+          this.flushProfile.cacheInvalidated(System.nanoTime() - start);
+        }
+      }
+    }
+  }
+  
+  /**
+   * Find the end of the run of identity inserts for the same batchable
+   * entity that starts at the given index.
+   */
+  private int identityInsertRunEnd(List list, int start)
+  {
+    EntityPersister persister = ((EntityIdentityInsertAction)list.get(start)).getPersister();
+    if (!IdentityInsertBatch.isBatchable(persister, this.session)) {
+      return start + 1;
+    }
+    int end = start + 1;
+    while ((end < list.size()) && ((list.get(end) instanceof EntityIdentityInsertAction)) && (((EntityIdentityInsertAction)list.get(end)).getPersister() == persister)) {
+      end++;
+    }
+    return end;
+  }
+  
+  private void executeIdentityInserts(List run)
+    throws HibernateException
+  {
+    this.session.getBatcher().executeBatch();
+    
+    int size = run.size();
+    boolean[] vetoed = new boolean[size];
+    List states = new ArrayList(size);
+    List entities = new ArrayList(size);
+    for (int i = 0; i < size; i++)
+    {
+      EntityIdentityInsertAction action = (EntityIdentityInsertAction)run.get(i);
+      beforeExecute(action);
+      vetoed[i] = action.beforeBatchedInsert();
+      if (!vetoed[i])
+      {
+        states.add(action.getState());
+        entities.add(action.getInstance());
+      }
+    }
+    EntityPersister persister = ((EntityIdentityInsertAction)run.get(0)).getPersister();
+    Serializable[] ids = states.isEmpty() ? new Serializable[0] : IdentityInsertBatch.insert(persister, (Object[][])states.toArray(new Object[states.size()][]), entities.toArray(), this.session);
+    int next = 0;
+    for (int i = 0; i < size; i++) {
+      ((EntityIdentityInsertAction)run.get(i)).afterBatchedInsert(vetoed[i] ? null : ids[(next++)]);
     }
-    executable.execute();
   }
   
   private void prepareActions(List queue)
@@ -269,6 +587,17 @@ public class ActionQueue
     return this.insertions.size();
   }
   
+  /**
+   * Add the entities with a queued insertion to the given list.
+   */
+  public void collectInsertedEntities(List entities)
+  {
+    int size = this.insertions.size();
+    for (int i = 0; i < size; i++) {
+      entities.add(((EntityAction)this.insertions.get(i)).getInstance());
+    }
+  }
+  
   public void sortCollectionActions()
   {
     if (this.session.getFactory().getSettings().isOrderUpdatesEnabled())
@@ -277,21 +606,28 @@ public class ActionQueue
       Collections.sort(this.collectionUpdates);
       Collections.sort(this.collectionRemovals);
     }
+    if (this.flushProfile != null) {
+      this.flushProfile.phaseEnded(FlushProfile.COLLECTION_FLUSH);
+    }
   }
   
   public void sortActions()
   {
+    if (this.flushProfile != null) {
+      this.flushProfile.phaseEnded(FlushProfile.DIRTY_CHECK);
+    }
     if (this.session.getFactory().getSettings().isOrderUpdatesEnabled()) {
-      Collections.sort(this.updates);
+      new ActionSorter(this.updates, SORT_UPDATES).sort();
     }
     if (this.session.getFactory().getSettings().isOrderInsertsEnabled()) {
-      sortInsertActions();
+      new ActionSorter(this.insertions, SORT_INSERTS).sort();
+    }
+    if (this.orderDeletes) {
+      new ActionSorter(this.deletions, SORT_DELETES).sort();
+    }
+    if (this.flushProfile != null) {
+      this.flushProfile.phaseEnded(FlushProfile.SORT);
     }
-  }
-  
-  private void sortInsertActions()
-  {
-    new InsertActionSorter().sort();
   }
   
   public ArrayList cloneDeletions()
@@ -301,6 +637,10 @@ public class ActionQueue
   
   public void clearFromFlushNeededCheck(int previousCollectionRemovalSize)
   {
+    removeQuerySpaces(this.collectionCreations, 0);
+    removeQuerySpaces(this.collectionUpdates, 0);
+    removeQuerySpaces(this.updates, 0);
+    removeQuerySpaces(this.collectionRemovals, previousCollectionRemovalSize);
     this.collectionCreations.clear();
     this.collectionUpdates.clear();
     this.updates.clear();
@@ -311,7 +651,7 @@ public class ActionQueue
   
   public boolean hasAfterTransactionActions()
   {
-    return this.executions.size() > 0;
+    return (this.executions.size() > 0) || (!this.invalidatedSpaces.isEmpty());
   }
   
   public boolean hasAnyQueuedActions()
@@ -404,89 +744,479 @@ public class ActionQueue
     for (int i = 0; i < queueSize; i++) {
       rtn.collectionCreations.add(ois.readObject());
     }
+    rtn.addQuerySpaces(rtn.insertions);
+    rtn.addQuerySpaces(rtn.deletions);
+    rtn.addQuerySpaces(rtn.updates);
+    rtn.addQuerySpaces(rtn.collectionUpdates);
+    rtn.addQuerySpaces(rtn.collectionRemovals);
+    rtn.addQuerySpaces(rtn.collectionCreations);
     return rtn;
   }
   
-  private class InsertActionSorter
+  /**
+   * Orders one of the entity action queues so that actions for the same
+   * entity, and therefore the same SQL, form runs as long as possible while
+   * rows referenced by a foreign key are inserted before, and deleted after,
+   * the rows that reference them. Entity types are ordered topologically
+   * by the references found in the queue; only types that reference each
+   * other in a cycle are split further by instance depth. Updates are
+   * grouped by entity and kept in identifier order.
+   */
+  private class ActionSorter
   {
-    private HashMap latestBatches = new HashMap();
-    private HashMap entityBatchNumber;
-    private HashMap actionBatches = new HashMap();
+    private final List actions;
+    private final int mode;
+    private final int size;
+    private final int[] groups;
+    private final ArrayList persisters = new ArrayList();
+    private int[] edgeFrom = new int[16];
+    private int[] edgeTo = new int[16];
+    private int edgeCount;
     
-    public InsertActionSorter()
+    public ActionSorter(List actions, int mode)
     {
-      this.entityBatchNumber = new HashMap(ActionQueue.this.insertions.size() + 1, 1.0F);
+      this.actions = actions;
+      this.mode = mode;
+      this.size = actions.size();
+      this.groups = new int[this.size];
     }
     
     public void sort()
     {
-      for (Iterator actionItr = ActionQueue.this.insertions.iterator(); actionItr.hasNext();)
+      if (this.size < 2) {
+        return;
+      }
+      int groupCount = assignGroups();
+      if (this.mode == SORT_UPDATES)
+      {
+        sortUpdates(groupCount);
+        return;
+      }
+      if (groupCount == 1) {
+        return;
+      }
+      collectEdges(groupCount);
+      
+      boolean[] typeEdges = new boolean[groupCount * groupCount];
+      boolean crossGroupEdges = false;
+      for (int e = 0; e < this.edgeCount; e++)
+      {
+        int from = this.groups[this.edgeFrom[e]];
+        int to = this.groups[this.edgeTo[e]];
+        if (from != to)
+        {
+          typeEdges[(from * groupCount + to)] = true;
+          crossGroupEdges = true;
+        }
+      }
+      if (!crossGroupEdges)
+      {
+        reorder(this.groups, groupCount);
+        return;
+      }
+      TypeComponents components = new TypeComponents(typeEdges, groupCount);
+      int[] componentRanks = components.rank();
+      if (components.isAcyclic())
+      {
+        int[] buckets = new int[this.size];
+        for (int i = 0; i < this.size; i++) {
+          buckets[i] = componentRanks[components.componentOf(this.groups[i])];
+        }
+        reorder(buckets, groupCount);
+        return;
+      }
+      int[] depths = instanceDepths(components);
+      HashMap bucketKeys = new HashMap();
+      long[] keys = new long[this.size];
+      for (int i = 0; i < this.size; i++)
+      {
+        int group = this.groups[i];
+        keys[i] = ((long)componentRanks[components.componentOf(group)] << 42 | (long)depths[i] << 21 | group);
+        bucketKeys.put(Long.valueOf(keys[i]), null);
+      }
+      long[] distinct = new long[bucketKeys.size()];
+      int d = 0;
+      for (Iterator iter = bucketKeys.keySet().iterator(); iter.hasNext();) {
+        distinct[(d++)] = ((Long)iter.next()).longValue();
+      }
+      Arrays.sort(distinct);
+      for (int b = 0; b < distinct.length; b++) {
+        bucketKeys.put(Long.valueOf(distinct[b]), Integer.valueOf(b));
+      }
+      int[] buckets = new int[this.size];
+      for (int i = 0; i < this.size; i++) {
+        buckets[i] = ((Integer)bucketKeys.get(Long.valueOf(keys[i]))).intValue();
+      }
+      reorder(buckets, distinct.length);
+    }
+    
+    private int assignGroups()
+    {
+      IdentityHashMap groupIndexes = new IdentityHashMap();
+      for (int i = 0; i < this.size; i++)
       {
-        EntityInsertAction action = (EntityInsertAction)actionItr.next();
-        
-        String entityName = action.getEntityName();
-        
-        Object currentEntity = action.getInstance();
-        Integer batchNumber;
-        if (this.latestBatches.containsKey(entityName))
+        EntityPersister persister = ((EntityAction)this.actions.get(i)).getPersister();
+        Integer group = (Integer)groupIndexes.get(persister);
+        if (group == null)
         {
-          batchNumber = findBatchNumber(action, entityName);
+          group = Integer.valueOf(this.persisters.size());
+          groupIndexes.put(persister, group);
+          this.persisters.add(persister);
         }
-        else
+        this.groups[i] = group.intValue();
+      }
+      return this.persisters.size();
+    }
+    
+    private void sortUpdates(int groupCount)
+    {
+      Integer[] byName = new Integer[groupCount];
+      for (int g = 0; g < groupCount; g++) {
+        byName[g] = Integer.valueOf(g);
+      }
+      Arrays.sort(byName, new Comparator()
+      {
+        public int compare(Object left, Object right)
         {
-          batchNumber = new Integer(this.actionBatches.size());
-          this.latestBatches.put(entityName, batchNumber);
+          return ((EntityPersister)ActionQueue.ActionSorter.this.persisters.get(((Integer)left).intValue())).getEntityName().compareTo(((EntityPersister)ActionQueue.ActionSorter.this.persisters.get(((Integer)right).intValue())).getEntityName());
         }
-        this.entityBatchNumber.put(currentEntity, batchNumber);
-        addToBatch(batchNumber, action);
+      });
+      int[] ranks = new int[groupCount];
+      for (int r = 0; r < groupCount; r++) {
+        ranks[byName[r].intValue()] = r;
       }
-      ActionQueue.this.insertions.clear();
-      Iterator batchItr;
-      for (int i = 0; i < this.actionBatches.size(); i++)
+      int[] buckets = new int[this.size];
+      for (int i = 0; i < this.size; i++) {
+        buckets[i] = ranks[this.groups[i]];
+      }
+      int[] starts = reorder(buckets, groupCount);
+      for (int r = 0; r < groupCount; r++) {
+        if (starts[(r + 1)] - starts[r] > 1) {
+          Collections.sort(this.actions.subList(starts[r], starts[(r + 1)]));
+        }
+      }
+    }
+    
+    /**
+     * Record an edge for every foreign key from one queued entity to another,
+     * pointing from the action that has to run first.
+     */
+    private void collectEdges(int groupCount)
+    {
+      IdentityHashMap indexes = new IdentityHashMap(this.size * 2);
+      for (int i = 0; i < this.size; i++) {
+        indexes.put(((EntityAction)this.actions.get(i)).getInstance(), Integer.valueOf(i));
+      }
+      int[][] foreignKeyProperties = new int[groupCount][];
+      for (int i = 0; i < this.size; i++)
       {
-        List batch = (List)this.actionBatches.get(new Integer(i));
-        for (batchItr = batch.iterator(); batchItr.hasNext();)
+        int group = this.groups[i];
+        if (foreignKeyProperties[group] == null) {
+          foreignKeyProperties[group] = foreignKeyProperties((EntityPersister)this.persisters.get(group));
+        }
+        int[] properties = foreignKeyProperties[group];
+        if (properties.length != 0)
         {
-          EntityInsertAction action = (EntityInsertAction)batchItr.next();
-          ActionQueue.this.insertions.add(action);
+          Object[] state = getState((EntityAction)this.actions.get(i));
+          if (state != null) {
+            for (int p = 0; p < properties.length; p++)
+            {
+              Object value = state[properties[p]];
+              if (value != null)
+              {
+                Integer referenced = (Integer)indexes.get(unproxy(value));
+                if ((referenced != null) && (referenced.intValue() != i)) {
+                  if (this.mode == SORT_DELETES) {
+                    addEdge(i, referenced.intValue());
+                  } else {
+                    addEdge(referenced.intValue(), i);
+                  }
+                }
+              }
+            }
+          }
         }
       }
     }
     
-    private Integer findBatchNumber(EntityInsertAction action, String entityName)
+    private int[] foreignKeyProperties(EntityPersister persister)
     {
-      Integer latestBatchNumberForType = (Integer)this.latestBatches.get(entityName);
-      
-      Object[] propertyValues = action.getState();
-      Type[] propertyTypes = action.getPersister().getClassMetadata().getPropertyTypes();
-      for (int i = 0; i < propertyValues.length; i++)
+      Type[] types = persister.getPropertyTypes();
+      int count = 0;
+      int[] properties = new int[types.length];
+      for (int p = 0; p < types.length; p++) {
+        if ((types[p].isEntityType()) && (((EntityType)types[p]).getForeignKeyDirection() == ForeignKeyDirection.FOREIGN_KEY_FROM_PARENT)) {
+          properties[(count++)] = p;
+        }
+      }
+      int[] result = new int[count];
+      System.arraycopy(properties, 0, result, 0, count);
+      return result;
+    }
+    
+    private Object[] getState(EntityAction action)
+    {
+      if ((action instanceof EntityInsertAction)) {
+        return ((EntityInsertAction)action).getState();
+      }
+      if ((action instanceof EntityIdentityInsertAction)) {
+        return ((EntityIdentityInsertAction)action).getState();
+      }
+      EntityEntry entry = ActionQueue.this.session.getPersistenceContext().getEntry(action.getInstance());
+      if (entry == null) {
+        return null;
+      }
+      return entry.getDeletedState() != null ? entry.getDeletedState() : entry.getLoadedState();
+    }
+    
+    private Object unproxy(Object value)
+    {
+      if (!(value instanceof HibernateProxy)) {
+        return value;
+      }
+      LazyInitializer li = ((HibernateProxy)value).getHibernateLazyInitializer();
+      if (!li.isUninitialized()) {
+        return li.getImplementation();
+      }
+      EntityPersister persister = ActionQueue.this.session.getFactory().getEntityPersister(li.getEntityName());
+      return ActionQueue.this.session.getPersistenceContext().getEntity(new EntityKey(li.getIdentifier(), persister, ActionQueue.this.session.getEntityMode()));
+    }
+    
+    private void addEdge(int from, int to)
+    {
+      if (this.edgeCount == this.edgeFrom.length)
+      {
+        int[] newFrom = new int[this.edgeCount * 2];
+        int[] newTo = new int[this.edgeCount * 2];
+        System.arraycopy(this.edgeFrom, 0, newFrom, 0, this.edgeCount);
+        System.arraycopy(this.edgeTo, 0, newTo, 0, this.edgeCount);
+        this.edgeFrom = newFrom;
+        this.edgeTo = newTo;
+      }
+      this.edgeFrom[this.edgeCount] = from;
+      this.edgeTo[this.edgeCount] = to;
+      this.edgeCount += 1;
+    }
+    
+    /**
+     * Longest path over the instance edges inside each cycle of entity types,
+     * counting only edges between different types, so that every bucket can
+     * run as one batch. Actions caught in an instance cycle keep their queue
+     * order after everything else of their component.
+     */
+    private int[] instanceDepths(TypeComponents components)
+    {
+      int[] outStarts = new int[this.size + 1];
+      int[] indegrees = new int[this.size];
+      for (int e = 0; e < this.edgeCount; e++) {
+        if (components.componentOf(this.groups[this.edgeFrom[e]]) == components.componentOf(this.groups[this.edgeTo[e]]))
+        {
+          outStarts[(this.edgeFrom[e] + 1)] += 1;
+          indegrees[this.edgeTo[e]] += 1;
+        }
+      }
+      for (int i = 0; i < this.size; i++) {
+        outStarts[(i + 1)] += outStarts[i];
+      }
+      int[] outEdges = new int[outStarts[this.size]];
+      int[] fill = new int[this.size];
+      System.arraycopy(outStarts, 0, fill, 0, this.size);
+      for (int e = 0; e < this.edgeCount; e++) {
+        if (components.componentOf(this.groups[this.edgeFrom[e]]) == components.componentOf(this.groups[this.edgeTo[e]])) {
+          outEdges[(fill[this.edgeFrom[e]]++)] = this.edgeTo[e];
+        }
+      }
+      int[] depths = new int[this.size];
+      int[] ready = new int[this.size];
+      int head = 0;
+      int tail = 0;
+      for (int i = 0; i < this.size; i++) {
+        if (indegrees[i] == 0) {
+          ready[(tail++)] = i;
+        }
+      }
+      int maxDepth = 0;
+      while (head < tail)
       {
-        Object value = propertyValues[i];
-        Type type = propertyTypes[i];
-        if ((type.isEntityType()) && (value != null))
+        int from = ready[(head++)];
+        for (int e = outStarts[from]; e < outStarts[(from + 1)]; e++)
         {
-          Integer associationBatchNumber = (Integer)this.entityBatchNumber.get(value);
-          if ((associationBatchNumber != null) && (associationBatchNumber.compareTo(latestBatchNumberForType) > 0))
+          int to = outEdges[e];
+          int depth = depths[from] + (this.groups[from] == this.groups[to] ? 0 : 1);
+          if (depth > depths[to])
+          {
+            depths[to] = depth;
+            maxDepth = Math.max(maxDepth, depth);
+          }
+          if (--indegrees[to] == 0) {
+            ready[(tail++)] = to;
+          }
+        }
+      }
+      if (tail < this.size)
+      {
+        log.warn("circular references between " + (this.size - tail) + " queued entity actions, keeping their order");
+        for (int i = 0; i < this.size; i++) {
+          if (indegrees[i] > 0) {
+            depths[i] = maxDepth + 1;
+          }
+        }
+      }
+      return depths;
+    }
+    
+    /**
+     * Stable counting sort of the queue by bucket. Returns the start index of
+     * every bucket, plus the queue size.
+     */
+    private int[] reorder(int[] buckets, int bucketCount)
+    {
+      int[] starts = new int[bucketCount + 1];
+      for (int i = 0; i < this.size; i++) {
+        starts[(buckets[i] + 1)] += 1;
+      }
+      for (int b = 0; b < bucketCount; b++) {
+        starts[(b + 1)] += starts[b];
+      }
+      int[] next = new int[bucketCount];
+      System.arraycopy(starts, 0, next, 0, bucketCount);
+      Object[] sorted = new Object[this.size];
+      for (int i = 0; i < this.size; i++) {
+        sorted[(next[buckets[i]]++)] = this.actions.get(i);
+      }
+      for (int i = 0; i < this.size; i++) {
+        this.actions.set(i, sorted[i]);
+      }
+      return starts;
+    }
+  }
+  
+  /**
+   * Strongly connected components of the entity type graph, ranked in a
+   * topological order that otherwise keeps the order the types were first
+   * queued in.
+   */
+  private static class TypeComponents
+  {
+    private final boolean[] edges;
+    private final int count;
+    private final int[] components;
+    private final int[] lowLinks;
+    private final int[] indexes;
+    private final boolean[] onStack;
+    private final int[] stack;
+    private int stackSize;
+    private int nextIndex = 1;
+    private int componentCount;
+    private boolean acyclic = true;
+    
+    public TypeComponents(boolean[] edges, int count)
+    {
+      this.edges = edges;
+      this.count = count;
+      this.components = new int[count];
+      this.lowLinks = new int[count];
+      this.indexes = new int[count];
+      this.onStack = new boolean[count];
+      this.stack = new int[count];
+      for (int v = 0; v < count; v++) {
+        if (this.indexes[v] == 0) {
+          connect(v);
+        }
+      }
+    }
+    
+    private void connect(int v)
+    {
+      this.indexes[v] = this.nextIndex;
+      this.lowLinks[v] = this.nextIndex;
+      this.nextIndex += 1;
+      this.stack[(this.stackSize++)] = v;
+      this.onStack[v] = true;
+      for (int w = 0; w < this.count; w++) {
+        if (this.edges[(v * this.count + w)] != false) {
+          if (this.indexes[w] == 0)
+          {
+            connect(w);
+            this.lowLinks[v] = Math.min(this.lowLinks[v], this.lowLinks[w]);
+          }
+          else if (this.onStack[w] != false)
           {
-            latestBatchNumberForType = new Integer(this.actionBatches.size());
-            this.latestBatches.put(entityName, latestBatchNumberForType);
-            
-            break;
+            this.lowLinks[v] = Math.min(this.lowLinks[v], this.indexes[w]);
           }
         }
       }
-      return latestBatchNumberForType;
+      if (this.lowLinks[v] == this.indexes[v])
+      {
+        int size = 0;
+        int w;
+        do
+        {
+          w = this.stack[(--this.stackSize)];
+          this.onStack[w] = false;
+          this.components[w] = this.componentCount;
+          size++;
+        } while (w != v);
+        if (size > 1) {
+          this.acyclic = false;
+        }
+        this.componentCount += 1;
+      }
     }
     
-    private void addToBatch(Integer batchNumber, EntityInsertAction action)
+    public int componentOf(int type)
     {
-      List actions = (List)this.actionBatches.get(batchNumber);
-      if (actions == null)
+      return this.components[type];
+    }
+    
+    public boolean isAcyclic()
+    {
+      return this.acyclic;
+    }
+    
+    /**
+     * Rank of every component: repeatedly take the ready component holding
+     * the earliest queued type.
+     */
+    public int[] rank()
+    {
+      int[] firstTypes = new int[this.componentCount];
+      Arrays.fill(firstTypes, this.count);
+      int[] indegrees = new int[this.componentCount];
+      boolean[] componentEdges = new boolean[this.componentCount * this.componentCount];
+      for (int v = 0; v < this.count; v++)
+      {
+        int from = this.components[v];
+        firstTypes[from] = Math.min(firstTypes[from], v);
+        for (int w = 0; w < this.count; w++)
+        {
+          int to = this.components[w];
+          if ((this.edges[(v * this.count + w)] != false) && (from != to) && (componentEdges[(from * this.componentCount + to)] == false))
+          {
+            componentEdges[(from * this.componentCount + to)] = true;
+            indegrees[to] += 1;
+          }
+        }
+      }
+      int[] ranks = new int[this.componentCount];
+      boolean[] ranked = new boolean[this.componentCount];
+      for (int r = 0; r < this.componentCount; r++)
       {
-        actions = new LinkedList();
-        this.actionBatches.put(batchNumber, actions);
+        int next = -1;
+        for (int c = 0; c < this.componentCount; c++) {
+          if ((ranked[c] == false) && (indegrees[c] == 0) && ((next < 0) || (firstTypes[c] < firstTypes[next]))) {
+            next = c;
+          }
+        }
+        ranked[next] = true;
+        ranks[next] = r;
+        for (int c = 0; c < this.componentCount; c++) {
+          if (componentEdges[(next * this.componentCount + c)] != false) {
+            indegrees[c] -= 1;
+          }
+        }
       }
-      actions.add(action);
+      return ranks;
     }
   }
 }
@@ -0,0 +1,82 @@
+package org.hibernate.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of a bulk flush, see
+ * {@link org.hibernate.impl.SessionImpl#bulkFlush(int)}. Each partition of
+ * the inserts is committed on its own connection, so a failed partition is
+ * rolled back while the others stay committed.
+ */
+public class BulkFlushResult {
+	private final int partitionCount;
+	private final int insertCount;
+	private final List<Failure> failures;
+
+	BulkFlushResult(int partitionCount, int insertCount, List<Failure> failures) {
+		this.partitionCount = partitionCount;
+		this.insertCount = insertCount;
+		this.failures = Collections.unmodifiableList(new ArrayList<Failure>(failures));
+	}
+
+	public int getPartitionCount() {
+		return this.partitionCount;
+	}
+
+	/**
+	 * Rows inserted and committed by the partitions that succeeded.
+	 */
+	public int getInsertCount() {
+		return this.insertCount;
+	}
+
+	/**
+	 * True if every partition was committed.
+	 */
+	public boolean isComplete() {
+		return this.failures.isEmpty();
+	}
+
+	public List<Failure> getFailures() {
+		return this.failures;
+	}
+
+	public String toString() {
+		return "BulkFlushResult[partitions=" + this.partitionCount + " inserted=" + this.insertCount + " failures="
+				+ this.failures + "]";
+	}
+
+	/**
+	 * A partition that was rolled back. Its entities were evicted from the
+	 * session and can be saved again in a new one.
+	 */
+	public static class Failure {
+		private final int partition;
+		private final List<Object> entities;
+		private final Throwable cause;
+
+		Failure(int partition, List<Object> entities, Throwable cause) {
+			this.partition = partition;
+			this.entities = Collections.unmodifiableList(entities);
+			this.cause = cause;
+		}
+
+		public int getPartition() {
+			return this.partition;
+		}
+
+		public List<Object> getEntities() {
+			return this.entities;
+		}
+
+		public Throwable getCause() {
+			return this.cause;
+		}
+
+		public String toString() {
+			return "partition " + this.partition + " (" + this.entities.size() + " entities): " + this.cause;
+		}
+	}
+}
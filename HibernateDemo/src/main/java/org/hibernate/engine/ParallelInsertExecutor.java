@@ -0,0 +1,311 @@
+package org.hibernate.engine;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.action.EntityInsertAction;
+import org.hibernate.action.Executable;
+import org.hibernate.connection.ConnectionProvider;
+import org.hibernate.event.EventListeners;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes the queued inserts of a flush in parallel, partitioned across
+ * several connections of the connection provider. Each partition is written
+ * through a session of its own on one connection and committed on its own,
+ * so a bulk flush is <em>not atomic</em>: a failed partition is rolled back
+ * and reported while the others stay committed, whether or not the flushing
+ * session has a transaction.
+ * <p/>
+ * Only inserts that are independent of the rest of the flush are executed
+ * in parallel: assigned or generated (not identity) identifiers, no
+ * associations or collections, no insert generated properties and no
+ * insert listeners. Their partitions are committed before the remaining
+ * actions of the flush run on the session's own connection, so those may
+ * reference the inserted rows.
+ */
+public class ParallelInsertExecutor {
+	private static final Logger log = LoggerFactory.getLogger(ParallelInsertExecutor.class);
+
+	private static final AtomicInteger EXECUTOR_COUNT = new AtomicInteger();
+
+	private final SessionImplementor session;
+	private final int connections;
+	private int partitionCount;
+	private int insertCount;
+	private final List<BulkFlushResult.Failure> failures = new ArrayList<BulkFlushResult.Failure>();
+	private final Set<Object> rolledBack = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+	public ParallelInsertExecutor(SessionImplementor session, int connections) {
+		if (connections < 1) {
+			throw new IllegalArgumentException("connections must be positive: " + connections);
+		}
+		this.session = session;
+		this.connections = connections;
+	}
+
+	/**
+	 * Execute the independent inserts of the given queue and return the
+	 * actions removed from it, whether their partition succeeded or not.
+	 */
+	List<Executable> execute(List insertions) throws HibernateException {
+		this.rolledBack.clear();
+		if (!insertListenersAbsent(this.session.getListeners())) {
+			return Collections.emptyList();
+		}
+		List<EntityInsertAction> independent = new ArrayList<EntityInsertAction>();
+		for (int i = 0; i < insertions.size(); i++) {
+			Object action = insertions.get(i);
+			if ((action instanceof EntityInsertAction) && isIndependent(((EntityInsertAction) action).getPersister())) {
+				independent.add((EntityInsertAction) action);
+			}
+		}
+		if (independent.isEmpty()) {
+			return Collections.emptyList();
+		}
+		Set<Object> removed = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		removed.addAll(independent);
+		int kept = 0;
+		int size = insertions.size();
+		for (int i = 0; i < size; i++) {
+			Object action = insertions.get(i);
+			if (!removed.contains(action)) {
+				insertions.set(kept++, action);
+			}
+		}
+		insertions.subList(kept, size).clear();
+
+		List<List<EntityInsertAction>> partitions = partition(independent);
+		Throwable[] causes = run(partitions);
+		Set<Serializable> spaces = new HashSet<Serializable>();
+		for (int i = 0; i < partitions.size(); i++) {
+			List<EntityInsertAction> partition = partitions.get(i);
+			if (causes[i] == null) {
+				completed(partition, spaces);
+			} else {
+				failed(i, partition, causes[i]);
+			}
+		}
+		if (!spaces.isEmpty() && this.session.getFactory().getSettings().isQueryCacheEnabled()) {
+			this.session.getFactory().getUpdateTimestampsCache().invalidate(spaces.toArray(new Serializable[spaces.size()]));
+		}
+		this.partitionCount += partitions.size();
+		return new ArrayList<Executable>(independent);
+	}
+
+	/**
+	 * The entities whose partition was rolled back by the last
+	 * {@link #execute(List)}. They were evicted, so their other queued
+	 * actions must not run.
+	 */
+	Set<Object> getRolledBackEntities() {
+		return this.rolledBack;
+	}
+
+	public BulkFlushResult getResult() {
+		return new BulkFlushResult(this.partitionCount, this.insertCount, this.failures);
+	}
+
+	private static boolean insertListenersAbsent(EventListeners listeners) {
+		return (listeners.getPreInsertEventListeners().length == 0)
+				&& (listeners.getPostInsertEventListeners().length == 0)
+				&& (listeners.getPostCommitInsertEventListeners().length == 0);
+	}
+
+	private static boolean isIndependent(EntityPersister persister) {
+		if (persister.hasInsertGeneratedProperties() || persister.isIdentifierAssignedByInsert()
+				|| persister.hasCollections()) {
+			return false;
+		}
+		Type[] types = persister.getPropertyTypes();
+		for (int i = 0; i < types.length; i++) {
+			if (types[i].isAssociationType()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Split the inserts into contiguous runs, keeping inserts of the same
+	 * entity together so they still share JDBC batches.
+	 */
+	private List<List<EntityInsertAction>> partition(List<EntityInsertAction> actions) {
+		int count = Math.min(this.connections, actions.size());
+		int size = (actions.size() + count - 1) / count;
+		List<List<EntityInsertAction>> partitions = new ArrayList<List<EntityInsertAction>>(count);
+		for (int start = 0; start < actions.size(); start += size) {
+			partitions.add(actions.subList(start, Math.min(start + size, actions.size())));
+		}
+		return partitions;
+	}
+
+	private Throwable[] run(List<List<EntityInsertAction>> partitions) {
+		Throwable[] causes = new Throwable[partitions.size()];
+		if (partitions.size() == 1) {
+			causes[0] = insert(partitions.get(0));
+			return causes;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(partitions.size(), new BulkThreadFactory());
+		try {
+			List<Future<Throwable>> futures = new ArrayList<Future<Throwable>>(partitions.size());
+			for (final List<EntityInsertAction> partition : partitions) {
+				futures.add(executor.submit(new Callable<Throwable>() {
+					public Throwable call() {
+						return insert(partition);
+					}
+				}));
+			}
+			// a partition may commit at any time, so wait for all of them to
+			// report what they did even if interrupted
+			boolean interrupted = false;
+			for (int i = 0; i < futures.size(); i++) {
+				while (true) {
+					try {
+						causes[i] = futures.get(i).get();
+						break;
+					} catch (ExecutionException e) {
+						causes[i] = e.getCause();
+						break;
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		return causes;
+	}
+
+	/**
+	 * Insert and commit one partition on a connection of its own, returning
+	 * the failure that rolled it back or null.
+	 */
+	private Throwable insert(List<EntityInsertAction> partition) {
+		SessionFactoryImplementor factory = this.session.getFactory();
+		ConnectionProvider connectionProvider = factory.getConnectionProvider();
+		Connection connection = null;
+		boolean autoCommit = false;
+		Session child = null;
+		try {
+			connection = connectionProvider.getConnection();
+			autoCommit = connection.getAutoCommit();
+			connection.setAutoCommit(false);
+			child = factory.openSession(connection);
+			SessionImplementor childSession = (SessionImplementor) child;
+			for (int i = 0; i < partition.size(); i++) {
+				EntityInsertAction action = partition.get(i);
+				action.getPersister().insert(action.getId(), action.getState(), action.getInstance(), childSession);
+			}
+			childSession.getBatcher().executeBatch();
+			connection.commit();
+			return null;
+		} catch (Throwable t) {
+			if (connection != null) {
+				try {
+					connection.rollback();
+				} catch (SQLException e) {
+					log.warn("could not roll back bulk insert partition", e);
+				}
+			}
+			return t;
+		} finally {
+			if (child != null) {
+				child.close();
+			}
+			if (connection != null) {
+				try {
+					if (autoCommit) {
+						connection.setAutoCommit(true);
+					}
+				} catch (SQLException e) {
+					log.warn("could not restore auto-commit of bulk insert connection", e);
+				}
+				try {
+					connectionProvider.closeConnection(connection);
+				} catch (SQLException e) {
+					log.warn("could not close bulk insert connection", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Mark the entities of a committed partition as existing in the database,
+	 * as executing their inserts would have.
+	 */
+	private void completed(List<EntityInsertAction> partition, Set<Serializable> spaces) {
+		boolean statistics = this.session.getFactory().getStatistics().isStatisticsEnabled();
+		PersistenceContext persistenceContext = this.session.getPersistenceContext();
+		for (int i = 0; i < partition.size(); i++) {
+			EntityInsertAction action = partition.get(i);
+			EntityEntry entry = persistenceContext.getEntry(action.getInstance());
+			if (entry != null) {
+				entry.postInsert();
+			}
+			Collections.addAll(spaces, action.getPropertySpaces());
+			if (statistics) {
+				this.session.getFactory().getStatisticsImplementor().insertEntity(action.getEntityName());
+			}
+		}
+		this.insertCount += partition.size();
+	}
+
+	/**
+	 * Evict the entities of a rolled back partition, so the session does not
+	 * take them for persistent. The action queue drops their other queued
+	 * actions, see {@link #getRolledBackEntities()}.
+	 */
+	private void failed(int index, List<EntityInsertAction> partition, Throwable cause) {
+		log.warn("bulk insert partition " + index + " of " + partition.size() + " entities was rolled back", cause);
+		PersistenceContext persistenceContext = this.session.getPersistenceContext();
+		List<Object> entities = new ArrayList<Object>(partition.size());
+		for (int i = 0; i < partition.size(); i++) {
+			EntityInsertAction action = partition.get(i);
+			EntityEntry entry = persistenceContext.removeEntry(action.getInstance());
+			if (entry != null) {
+				EntityKey key = new EntityKey(entry.getId(), entry.getPersister(), this.session.getEntityMode());
+				persistenceContext.removeEntity(key);
+				persistenceContext.removeProxy(key);
+			}
+			entities.add(action.getInstance());
+			this.rolledBack.add(action.getInstance());
+		}
+		this.failures.add(new BulkFlushResult.Failure(this.partitionCount + index, entities, cause));
+	}
+
+	private static final class BulkThreadFactory implements ThreadFactory {
+		private final int executor = EXECUTOR_COUNT.incrementAndGet();
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "hibernate-bulk-insert-" + this.executor + "-"
+					+ this.threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package org.hibernate.impl;
+
+import org.hibernate.event.EventSource;
+import org.hibernate.event.def.DefaultPersistEventListener;
+
+/**
+ * The persist listener of sessions that batch identity inserts. It lets the
+ * identity insert of a persisted entity wait for flush, also inside a
+ * transaction, when the session's action queue batches identity inserts.
+ * <tt>save()</tt> is not covered: it returns the identifier, which an
+ * identity column only has once the row is inserted.
+ */
+class IdentityInsertDeferringPersistEventListener extends DefaultPersistEventListener {
+	protected boolean shouldDelayIdentityInserts(EventSource source, boolean requiresImmediateIdAccess) {
+		if (!requiresImmediateIdAccess && source.getActionQueue().isBatchingIdentityInserts()) {
+			return true;
+		}
+		return super.shouldDelayIdentityInserts(source, requiresImmediateIdAccess);
+	}
+}
@@ -0,0 +1,18 @@
+package org.hibernate.impl;
+
+import org.hibernate.event.PostLoadEvent;
+import org.hibernate.event.PostLoadEventListener;
+
+/**
+ * Tells the session of each entity it loads, so it can make entities
+ * assembled from the second-level cache read-only if the session is
+ * read-only by default and record the entities loaded while it fetches a
+ * row of a {@link ScrollStream}.
+ */
+final class LoadRecordingPostLoadEventListener implements PostLoadEventListener {
+	public void onPostLoad(PostLoadEvent event) {
+		if (event.getSession() instanceof SessionImpl) {
+			((SessionImpl) event.getSession()).entityLoaded(event.getEntity());
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package org.hibernate.impl;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hibernate.FlushMode;
+import org.hibernate.LockMode;
+import org.hibernate.cfg.ExtendedEnvironment;
+import org.hibernate.dialect.SybaseDialect;
+import org.hibernate.engine.EntityEntry;
+import org.hibernate.engine.EntityKey;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.Status;
+import org.hibernate.event.LoadEvent;
+import org.hibernate.event.LoadEventListener;
+import org.hibernate.event.def.DefaultLoadEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+
+/**
+ * Loads many entities of one class by identifier. Identifiers are resolved
+ * from the persistence context, then from the second-level cache, and the
+ * rest are fetched with one query per chunk of identifiers, instead of one
+ * load event and select per identifier.
+ */
+final class MultiIdLoader {
+	private static final SecondLevelCacheLoader CACHE_LOADER = new SecondLevelCacheLoader();
+
+	private MultiIdLoader() {
+	}
+
+	/**
+	 * The entities with the given identifiers, in the order of the
+	 * identifiers, with null for rows that do not exist or were deleted in
+	 * the session.
+	 */
+	static List load(SessionImpl session, EntityPersister persister, Collection ids) {
+		Map<Serializable, Object> found = new HashMap<Serializable, Object>();
+		Set<Serializable> missing = new LinkedHashSet<Serializable>();
+		boolean cached = persister.hasCache() && session.getCacheMode().isGetEnabled();
+		for (Iterator it = ids.iterator(); it.hasNext();) {
+			Serializable id = (Serializable) it.next();
+			if ((id == null) || found.containsKey(id) || missing.contains(id)) {
+				continue;
+			}
+			EntityKey key = new EntityKey(id, persister, session.getEntityMode());
+			Object entity = session.getEntityUsingInterceptor(key);
+			if (entity != null) {
+				EntityEntry entry = session.getPersistenceContext().getEntry(entity);
+				boolean removed = (entry != null)
+						&& ((entry.getStatus() == Status.DELETED) || (entry.getStatus() == Status.GONE));
+				found.put(id, removed ? null : entity);
+			} else {
+				Object cachedEntity = cached ? CACHE_LOADER.load(session, persister, id) : null;
+				if (cachedEntity != null) {
+					found.put(id, cachedEntity);
+				} else {
+					missing.add(id);
+				}
+			}
+		}
+		if (!missing.isEmpty()) {
+			fetch(session, persister, new ArrayList<Serializable>(missing), found);
+		}
+		List result = new ArrayList(ids.size());
+		for (Iterator it = ids.iterator(); it.hasNext();) {
+			Object id = it.next();
+			result.add(id == null ? null : found.get(id));
+		}
+		return result;
+	}
+
+	/**
+	 * Looks an identifier up in the second-level cache once and, on a hit,
+	 * adds the entity it assembles to the persistence context.
+	 */
+	private static final class SecondLevelCacheLoader extends DefaultLoadEventListener {
+		Object load(SessionImpl session, EntityPersister persister, Serializable id) {
+			LoadEvent event = new LoadEvent(id, persister.getEntityName(), LockMode.NONE, session);
+			return loadFromSecondLevelCache(event, persister, LoadEventListener.GET);
+		}
+	}
+
+	private static void fetch(SessionImpl session, EntityPersister persister, List<Serializable> ids,
+			Map<Serializable, Object> found) {
+		String idProperty = persister.getIdentifierPropertyName();
+		String hql = "from " + persister.getEntityName() + " e where e." + (idProperty == null ? "id" : idProperty)
+				+ " in (:ids)";
+		int chunkSize = getMaxInListSize(session.getFactory());
+		for (int start = 0; start < ids.size(); start += chunkSize) {
+			List chunk = ids.subList(start, Math.min(start + chunkSize, ids.size()));
+			List entities = session.createQuery(hql).setParameterList("ids", chunk).setFlushMode(FlushMode.MANUAL)
+					.list();
+			for (int i = 0; i < entities.size(); i++) {
+				Object entity = entities.get(i);
+				found.put(session.getIdentifier(entity), entity);
+			}
+		}
+	}
+
+	/**
+	 * Oracle allows 1000 expressions in a list and SQL Server, a Sybase
+	 * dialect, about 2000 bind parameters per statement.
+	 */
+	private static int getMaxInListSize(SessionFactoryImplementor factory) {
+		int defaultSize = (factory.getDialect() instanceof SybaseDialect) ? 2000 : 1000;
+		return Math.max(1, ExtendedEnvironment.getInt(factory, ExtendedEnvironment.MAX_IN_LIST_SIZE, defaultSize));
+	}
+}
@@ -0,0 +1,208 @@
+package org.hibernate.impl;
+
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hibernate.AssertionFailure;
+import org.hibernate.Filter;
+import org.hibernate.HibernateException;
+import org.hibernate.connection.ConnectionProvider;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.exception.JDBCExceptionHelper;
+import org.hibernate.loader.criteria.CriteriaLoader;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the loaders of a criteria query over an interface or superclass
+ * with several implementors and concatenates their results, in time linear
+ * in the total result size.
+ * <p/>
+ * Loaders that only return scalar values, not entities or components that
+ * would have to become part of the session, can be run concurrently: each
+ * on a connection of its own from the connection provider, through a
+ * temporary session. Such loaders see only committed data, so they are run
+ * concurrently only when enabled and the session has no transaction and no
+ * queued actions. The temporary sessions get the enabled filters and fetch
+ * profile of the session and its interceptor, which is called from the
+ * loader threads; a session scoped interceptor need not be thread safe, so
+ * sessions opened with one list sequentially.
+ */
+final class PolymorphicCriteriaLoader {
+	private static final Logger log = LoggerFactory.getLogger(PolymorphicCriteriaLoader.class);
+
+	private static final Field RESULT_TYPES = resultTypesField();
+
+	private PolymorphicCriteriaLoader() {
+	}
+
+	/**
+	 * The results of all loaders, those of the last loader first as they
+	 * always have been.
+	 */
+	static List list(CriteriaLoader[] loaders, SessionImpl session, boolean concurrent) throws HibernateException {
+		concurrent = concurrent && (loaders.length > 1)
+				&& (session.getInterceptor() == session.getFactory().getInterceptor()) && isScalar(loaders);
+		List[] results = concurrent ? listConcurrently(loaders, session) : listSequentially(loaders, session);
+		if (results.length == 1) {
+			return results[0];
+		}
+		int size = 0;
+		for (int i = 0; i < results.length; i++) {
+			size += results[i].size();
+		}
+		List merged = new ArrayList(size);
+		for (int i = results.length - 1; i >= 0; i--) {
+			merged.addAll(results[i]);
+		}
+		return merged;
+	}
+
+	private static List[] listSequentially(CriteriaLoader[] loaders, SessionImplementor session) {
+		List[] results = new List[loaders.length];
+		for (int i = 0; i < loaders.length; i++) {
+			results[i] = loaders[i].list(session);
+		}
+		return results;
+	}
+
+	private static List[] listConcurrently(final CriteriaLoader[] loaders, final SessionImpl session) {
+		final SessionFactoryImplementor factory = session.getFactory();
+		final Collection<FilterImpl> filters = new ArrayList<FilterImpl>(session.getEnabledFilters().values());
+		List<Future<List>> futures = new ArrayList<Future<List>>(loaders.length - 1);
+		for (int i = 1; i < loaders.length; i++) {
+			final CriteriaLoader loader = loaders[i];
+			futures.add(LoaderExecutor.EXECUTOR.submit(new Callable<List>() {
+				public List call() throws SQLException {
+					return listOnOwnConnection(loader, session, filters);
+				}
+			}));
+		}
+		List[] results = new List[loaders.length];
+		try {
+			results[0] = listOnOwnConnection(loaders[0], session, filters);
+		} catch (SQLException e) {
+			cancel(futures);
+			throw JDBCExceptionHelper.convert(factory.getSQLExceptionConverter(), e, "could not list implementor");
+		} catch (RuntimeException e) {
+			cancel(futures);
+			throw e;
+		}
+		for (int i = 1; i < loaders.length; i++) {
+			try {
+				results[i] = futures.get(i - 1).get();
+			} catch (InterruptedException e) {
+				cancel(futures);
+				Thread.currentThread().interrupt();
+				throw new HibernateException("interrupted while listing implementors", e);
+			} catch (ExecutionException e) {
+				cancel(futures);
+				Throwable cause = e.getCause();
+				if (cause instanceof SQLException) {
+					throw JDBCExceptionHelper.convert(factory.getSQLExceptionConverter(), (SQLException) cause,
+							"could not list implementor");
+				}
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw new HibernateException("could not list implementor", cause);
+			}
+		}
+		return results;
+	}
+
+	private static List listOnOwnConnection(CriteriaLoader loader, SessionImpl session, Collection<FilterImpl> filters)
+			throws SQLException {
+		SessionFactoryImplementor factory = session.getFactory();
+		ConnectionProvider connectionProvider = factory.getConnectionProvider();
+		Connection connection = connectionProvider.getConnection();
+		try {
+			SessionImpl temporary = (SessionImpl) factory.openSession(connection, session.getInterceptor());
+			try {
+				temporary.setFetchProfile(session.getFetchProfile());
+				for (FilterImpl filter : filters) {
+					Filter copy = temporary.enableFilter(filter.getName());
+					Iterator parameters = filter.getParameters().entrySet().iterator();
+					while (parameters.hasNext()) {
+						Map.Entry parameter = (Map.Entry) parameters.next();
+						if (parameter.getValue() instanceof Collection) {
+							copy.setParameterList((String) parameter.getKey(), (Collection) parameter.getValue());
+						} else {
+							copy.setParameter((String) parameter.getKey(), parameter.getValue());
+						}
+					}
+				}
+				return loader.list(temporary);
+			} finally {
+				temporary.close();
+			}
+		} finally {
+			connectionProvider.closeConnection(connection);
+		}
+	}
+
+	private static void cancel(List<Future<List>> futures) {
+		for (int i = 0; i < futures.size(); i++) {
+			futures.get(i).cancel(false);
+		}
+	}
+
+	/**
+	 * True if no loader returns entities, whose instances must be unique
+	 * within the session.
+	 */
+	private static boolean isScalar(CriteriaLoader[] loaders) {
+		for (int i = 0; i < loaders.length; i++) {
+			Type[] types;
+			try {
+				types = (Type[]) RESULT_TYPES.get(loaders[i]);
+			} catch (IllegalAccessException e) {
+				log.debug("could not read criteria result types", e);
+				return false;
+			}
+			for (int j = 0; j < types.length; j++) {
+				if (types[j].isAssociationType() || types[j].isComponentType()) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static Field resultTypesField() {
+		try {
+			Field field = CriteriaLoader.class.getDeclaredField("resultTypes");
+			field.setAccessible(true);
+			return field;
+		} catch (NoSuchFieldException e) {
+			throw new AssertionFailure("CriteriaLoader.resultTypes not found", e);
+		}
+	}
+
+	private static class LoaderExecutor {
+		private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "hibernate-criteria-loader-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+}
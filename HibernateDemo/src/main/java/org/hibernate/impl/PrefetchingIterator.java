@@ -0,0 +1,210 @@
+package org.hibernate.impl;
+
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.hibernate.HibernateException;
+import org.hibernate.JDBCException;
+import org.hibernate.engine.EntityKey;
+import org.hibernate.engine.HibernateIterator;
+import org.hibernate.exception.JDBCExceptionHelper;
+import org.hibernate.hql.HolderInstantiator;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The iterator of <tt>Session.iterate()</tt>, reading the identifiers of
+ * the next rows in chunks and loading the entities of a chunk with
+ * {@link SessionImpl#getMany(String, java.util.Collection)} before handing
+ * out its first row, instead of one select per row. Rows are resolved as
+ * they are handed out, so closing the iterator or evicting the returned
+ * entities works as with {@link IteratorImpl}, which this iterator takes
+ * the open result set of. Where the fields of <tt>IteratorImpl</tt> it takes
+ * over cannot be read, the plain iterator is used.
+ */
+final class PrefetchingIterator implements HibernateIterator {
+	private static final Logger log = LoggerFactory.getLogger(PrefetchingIterator.class);
+
+	private static final Field RESULT_SET = field("rs");
+	private static final Field HAS_NEXT = field("hasNext");
+	private static final Field TYPES = field("types");
+	private static final Field NAMES = field("names");
+	private static final Field SINGLE = field("single");
+	private static final Field HOLDER_INSTANTIATOR = field("holderInstantiator");
+	private static final boolean SUPPORTED = (RESULT_SET != null) && (HAS_NEXT != null) && (TYPES != null)
+			&& (NAMES != null) && (SINGLE != null) && (HOLDER_INSTANTIATOR != null);
+
+	private final IteratorImpl iterator;
+	private final SessionImpl session;
+	private final int chunkSize;
+	private final ResultSet rs;
+	private final Type[] types;
+	private final String[][] names;
+	private final boolean single;
+	private final HolderInstantiator holderInstantiator;
+	private final List<Object[]> chunk = new ArrayList<Object[]>();
+	private int position;
+	private boolean rowAvailable;
+	private Object currentResult;
+
+	private PrefetchingIterator(IteratorImpl iterator, SessionImpl session, int chunkSize)
+			throws IllegalAccessException {
+		this.iterator = iterator;
+		this.session = session;
+		this.chunkSize = chunkSize;
+		this.rs = (ResultSet) get(RESULT_SET, iterator);
+		this.rowAvailable = ((Boolean) get(HAS_NEXT, iterator)).booleanValue();
+		this.types = (Type[]) get(TYPES, iterator);
+		this.names = (String[][]) get(NAMES, iterator);
+		this.single = ((Boolean) get(SINGLE, iterator)).booleanValue();
+		this.holderInstantiator = (HolderInstantiator) get(HOLDER_INSTANTIATOR, iterator);
+	}
+
+	/**
+	 * The given iterator, prefetching its entities in chunks of the given
+	 * size if its fields can be read.
+	 */
+	static Iterator prefetching(IteratorImpl iterator, SessionImpl session, int chunkSize) {
+		if (!SUPPORTED) {
+			return iterator;
+		}
+		try {
+			return new PrefetchingIterator(iterator, session, chunkSize);
+		} catch (IllegalAccessException e) {
+			log.debug("could not read the iterator, not prefetching", e);
+			return iterator;
+		}
+	}
+
+	public boolean hasNext() {
+		return (this.position < this.chunk.size()) || this.rowAvailable;
+	}
+
+	public Object next() throws HibernateException {
+		if (this.position == this.chunk.size()) {
+			if (!this.rowAvailable) {
+				throw new NoSuchElementException("No more results");
+			}
+			readChunk();
+		}
+		Object[] row = this.chunk.get(this.position);
+		this.chunk.set(this.position++, null);
+		Object[] results = new Object[this.types.length];
+		for (int i = 0; i < this.types.length; i++) {
+			results[i] = this.types[i].resolve(row[i], this.session, null);
+		}
+		if (this.holderInstantiator.isRequired()) {
+			this.currentResult = this.holderInstantiator.instantiate(results);
+		} else {
+			this.currentResult = this.single ? results[0] : results;
+		}
+		return this.currentResult;
+	}
+
+	public void remove() {
+		if (!this.single) {
+			throw new UnsupportedOperationException("Not a single column hibernate query result set");
+		}
+		if (this.currentResult == null) {
+			throw new IllegalStateException("Called Iterator.remove() before next()");
+		}
+		if (!(this.types[0] instanceof EntityType)) {
+			throw new UnsupportedOperationException("Not an entity");
+		}
+		this.session.delete(((EntityType) this.types[0]).getAssociatedEntityName(), this.currentResult, false, null);
+	}
+
+	public void close() throws JDBCException {
+		this.rowAvailable = false;
+		this.chunk.clear();
+		this.position = 0;
+		this.iterator.close();
+	}
+
+	/**
+	 * Hydrate the next rows, then load the entities they reference that are
+	 * not in the session yet.
+	 */
+	private void readChunk() {
+		this.chunk.clear();
+		this.position = 0;
+		try {
+			while (this.rowAvailable && (this.chunk.size() < this.chunkSize)) {
+				Object[] row = new Object[this.types.length];
+				for (int i = 0; i < this.types.length; i++) {
+					row[i] = this.types[i].hydrate(this.rs, this.names[i], this.session, null);
+				}
+				this.chunk.add(row);
+				this.rowAvailable = this.rs.next();
+			}
+		} catch (SQLException e) {
+			throw JDBCExceptionHelper.convert(this.session.getFactory().getSQLExceptionConverter(), e,
+					"could not get next iterator result");
+		}
+		if (!this.rowAvailable) {
+			this.iterator.close();
+		}
+		prefetch();
+	}
+
+	private void prefetch() {
+		Map<String, Set<Serializable>> ids = new LinkedHashMap<String, Set<Serializable>>();
+		for (int i = 0; i < this.types.length; i++) {
+			if (!this.types[i].isEntityType() || !((EntityType) this.types[i]).isReferenceToPrimaryKey()) {
+				continue;
+			}
+			String entityName = ((EntityType) this.types[i]).getAssociatedEntityName();
+			EntityPersister persister = this.session.getFactory().getEntityPersister(entityName);
+			for (int j = 0; j < this.chunk.size(); j++) {
+				Serializable id = (Serializable) this.chunk.get(j)[i];
+				if ((id == null)
+						|| (this.session.getPersistenceContext().getEntity(
+								new EntityKey(id, persister, this.session.getEntityMode())) != null)) {
+					continue;
+				}
+				Set<Serializable> entityIds = ids.get(entityName);
+				if (entityIds == null) {
+					entityIds = new HashSet<Serializable>();
+					ids.put(entityName, entityIds);
+				}
+				entityIds.add(id);
+			}
+		}
+		for (Map.Entry<String, Set<Serializable>> entry : ids.entrySet()) {
+			if (entry.getValue().size() > 1) {
+				this.session.getMany(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	private static Field field(String name) {
+		try {
+			Field field = IteratorImpl.class.getDeclaredField(name);
+			field.setAccessible(true);
+			return field;
+		} catch (NoSuchFieldException e) {
+			log.warn("IteratorImpl." + name + " not found, iterate() will not prefetch");
+			return null;
+		} catch (SecurityException e) {
+			log.warn("IteratorImpl." + name + " is not accessible, iterate() will not prefetch", e);
+			return null;
+		}
+	}
+
+	private static Object get(Field field, Object target) throws IllegalAccessException {
+		return field.get(target);
+	}
+}
@@ -0,0 +1,89 @@
+package org.hibernate.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.hibernate.ScrollableResults;
+import org.hibernate.engine.PersistenceContext;
+
+/**
+ * A sequential stream over a forward only scroll. Each row is fetched when
+ * the stream asks for it, and the entities loaded by fetching a row are
+ * evicted from the session when the next row is asked for, after the
+ * consumer is done with them, so the persistence context does not grow with
+ * the number of rows read. Entities the session already held are left
+ * alone. The cursor is closed when the rows run out or the stream is
+ * closed.
+ */
+final class ScrollStream extends Spliterators.AbstractSpliterator<Object> {
+	private final ScrollableResults results;
+	private final SessionImpl session;
+	private final List<Object> loaded = new ArrayList<Object>();
+	private boolean exhausted;
+
+	private ScrollStream(ScrollableResults results, SessionImpl session) {
+		super(Long.MAX_VALUE, Spliterator.ORDERED);
+		this.results = results;
+		this.session = session;
+	}
+
+	static Stream<Object> stream(ScrollableResults results, SessionImpl session) {
+		final ScrollStream spliterator = new ScrollStream(results, session);
+		return StreamSupport.stream(spliterator, false).onClose(new Runnable() {
+			public void run() {
+				spliterator.close();
+			}
+		});
+	}
+
+	public boolean tryAdvance(Consumer<? super Object> action) {
+		if (this.exhausted) {
+			return false;
+		}
+		evictLoaded();
+		boolean advanced;
+		// fetching the row hydrates it, so record what it loads while fetching
+		List<Object> recording = this.session.setLoadedEntities(this.loaded);
+		try {
+			advanced = this.results.next();
+		} finally {
+			this.session.setLoadedEntities(recording);
+		}
+		if (!advanced) {
+			close();
+			return false;
+		}
+		Object[] row = this.results.get();
+		action.accept(row.length == 1 ? row[0] : row);
+		return true;
+	}
+
+	private void evictLoaded() {
+		if (this.loaded.isEmpty()) {
+			return;
+		}
+		if (!this.session.isClosed()) {
+			PersistenceContext persistenceContext = this.session.getPersistenceContext();
+			for (int i = 0; i < this.loaded.size(); i++) {
+				Object entity = this.loaded.get(i);
+				if (persistenceContext.isEntryFor(entity)) {
+					this.session.evict(entity);
+				}
+			}
+		}
+		this.loaded.clear();
+	}
+
+	private void close() {
+		if (!this.exhausted) {
+			this.exhausted = true;
+			evictLoaded();
+			this.results.close();
+		}
+	}
+}
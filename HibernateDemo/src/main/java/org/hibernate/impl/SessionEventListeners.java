@@ -0,0 +1,54 @@
+package org.hibernate.impl;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.hibernate.cfg.ExtendedEnvironment;
+import org.hibernate.event.EventListeners;
+import org.hibernate.event.PersistEventListener;
+import org.hibernate.event.PostLoadEventListener;
+import org.hibernate.event.def.DefaultPersistEventListener;
+
+/**
+ * The event listeners of the sessions of a factory: those of the factory,
+ * with the default listeners replaced where an extended setting needs a
+ * listener of its own and a listener recording loaded entities for
+ * {@link ScrollStream}. Built once per factory.
+ */
+final class SessionEventListeners {
+	private static final Map<SessionFactoryImpl, EventListeners> LISTENERS = new WeakHashMap<SessionFactoryImpl, EventListeners>();
+
+	private SessionEventListeners() {
+	}
+
+	static EventListeners forFactory(SessionFactoryImpl factory) {
+		synchronized (LISTENERS) {
+			EventListeners listeners = LISTENERS.get(factory);
+			if (listeners == null) {
+				listeners = create(factory);
+				LISTENERS.put(factory, listeners);
+			}
+			return listeners;
+		}
+	}
+
+	private static EventListeners create(SessionFactoryImpl factory) {
+		EventListeners listeners = (EventListeners) factory.getEventListeners().shallowCopy();
+		PostLoadEventListener[] postLoadListeners = listeners.getPostLoadEventListeners();
+		PostLoadEventListener[] recordingListeners = new PostLoadEventListener[postLoadListeners.length + 1];
+		System.arraycopy(postLoadListeners, 0, recordingListeners, 0, postLoadListeners.length);
+		recordingListeners[postLoadListeners.length] = new LoadRecordingPostLoadEventListener();
+		listeners.setPostLoadEventListeners(recordingListeners);
+		if (!ExtendedEnvironment.getBoolean(factory, ExtendedEnvironment.BATCH_IDENTITY_INSERTS, false)) {
+			return listeners;
+		}
+		PersistEventListener[] persistListeners = listeners.getPersistEventListeners().clone();
+		for (int i = 0; i < persistListeners.length; i++) {
+			if (persistListeners[i].getClass() == DefaultPersistEventListener.class) {
+				persistListeners[i] = new IdentityInsertDeferringPersistEventListener();
+			}
+		}
+		listeners.setPersistEventListeners(persistListeners);
+		return listeners;
+	}
+}
@@ -6,19 +6,22 @@ import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.stream.Stream;
 import org.dom4j.Element;
 import org.hibernate.CacheMode;
 import org.hibernate.ConnectionReleaseMode;
 import org.hibernate.Criteria;
 import org.hibernate.EntityMode;
+import org.hibernate.ExtendedSession;
 import org.hibernate.Filter;
 import org.hibernate.FlushMode;
 import org.hibernate.HibernateException;
@@ -37,13 +40,16 @@ import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
 import org.hibernate.TransientObjectException;
 import org.hibernate.UnresolvableObjectException;
+import org.hibernate.cfg.ExtendedEnvironment;
 import org.hibernate.cfg.Settings;
 import org.hibernate.collection.PersistentCollection;
 import org.hibernate.engine.ActionQueue;
+import org.hibernate.engine.BulkFlushResult;
 import org.hibernate.engine.CollectionEntry;
 import org.hibernate.engine.EntityEntry;
 import org.hibernate.engine.EntityKey;
 import org.hibernate.engine.FilterDefinition;
+import org.hibernate.engine.ParallelInsertExecutor;
 import org.hibernate.engine.PersistenceContext;
 import org.hibernate.engine.QueryParameters;
 import org.hibernate.engine.SessionFactoryImplementor;
@@ -84,6 +90,7 @@ import org.hibernate.event.ReplicateEventListener;
 import org.hibernate.event.SaveOrUpdateEvent;
 import org.hibernate.event.SaveOrUpdateEventListener;
 import org.hibernate.exception.JDBCExceptionHelper;
+import org.hibernate.jdbc.AbstractBatcher;
 import org.hibernate.jdbc.Batcher;
 import org.hibernate.jdbc.ConnectionManager;
 import org.hibernate.jdbc.JDBCContext;
@@ -100,8 +107,10 @@ import org.hibernate.pretty.MessageHelper;
 import org.hibernate.proxy.EntityNotFoundDelegate;
 import org.hibernate.proxy.HibernateProxy;
 import org.hibernate.proxy.LazyInitializer;
+import org.hibernate.stat.ExtendedSessionStatistics;
+import org.hibernate.stat.ExtendedStatisticsImpl;
+import org.hibernate.stat.FlushProfile;
 import org.hibernate.stat.SessionStatistics;
-import org.hibernate.stat.SessionStatisticsImpl;
 import org.hibernate.stat.Statistics;
 import org.hibernate.stat.StatisticsImplementor;
 import org.hibernate.type.Type;
@@ -113,7 +122,7 @@ import org.slf4j.LoggerFactory;
 
 public final class SessionImpl
   extends AbstractSessionImpl
-  implements EventSource, org.hibernate.classic.Session, JDBCContext.Context
+  implements EventSource, ExtendedSession, JDBCContext.Context
 {
   private static final Logger log = LoggerFactory.getLogger(SessionImpl.class);
   private transient EntityMode entityMode = EntityMode.POJO;
@@ -134,6 +143,13 @@ public final class SessionImpl
   private transient Map enabledFilters = new HashMap();
   private transient org.hibernate.Session rootSession;
   private transient Map childSessionsByEntityMode;
+  private transient int maxQueuedActions;
+  private transient boolean defaultReadOnly;
+  private transient List writeBehindEntities;
+  private transient ExtendedStatisticsImpl extendedStatistics;
+  private transient FlushProfile flushProfile;
+  private transient List loadedEntities;
+  private transient int writableLoads;
   
   private SessionImpl(SessionImpl parent, EntityMode entityMode)
   {
@@ -144,6 +160,8 @@ public final class SessionImpl
     this.interceptor = parent.interceptor;
     this.listeners = parent.listeners;
     this.actionQueue = new ActionQueue(this);
+    initFlushProfile();
+    this.defaultReadOnly = parent.defaultReadOnly;
     this.entityMode = entityMode;
     this.persistenceContext = new StatefulPersistenceContext(this);
     this.flushBeforeCompletionEnabled = false;
@@ -162,12 +180,15 @@ public final class SessionImpl
     this.timestamp = timestamp;
     this.entityMode = entityMode;
     this.interceptor = interceptor;
-    this.listeners = factory.getEventListeners();
+    this.listeners = SessionEventListeners.forFactory(factory);
     this.actionQueue = new ActionQueue(this);
+    initFlushProfile();
     this.persistenceContext = new StatefulPersistenceContext(this);
     this.flushBeforeCompletionEnabled = flushBeforeCompletionEnabled;
     this.autoCloseSessionEnabled = autoCloseSessionEnabled;
     this.connectionReleaseMode = connectionReleaseMode;
+    this.maxQueuedActions = ExtendedEnvironment.getInt(this.factory, ExtendedEnvironment.MAX_QUEUED_ACTIONS, 0);
+    this.defaultReadOnly = ExtendedEnvironment.getBoolean(this.factory, ExtendedEnvironment.DEFAULT_READ_ONLY, false);
     this.jdbcContext = new JDBCContext(this, connection, interceptor);
     if (factory.getStatistics().isStatisticsEnabled()) {
       factory.getStatisticsImplementor().openSession();
@@ -321,6 +342,7 @@ public final class SessionImpl
     throws HibernateException
   {
     errorIfClosed();
+    openRoutedConnection();
     return this.jdbcContext.borrowConnection();
   }
   
@@ -395,6 +417,10 @@ public final class SessionImpl
     log.trace("after transaction completion");
     this.persistenceContext.afterTransactionCompletion();
     this.actionQueue.afterTransactionCompletion(success);
+    Batcher batcher = this.jdbcContext.getConnectionManager().getBatcher();
+    if ((batcher instanceof AbstractBatcher)) {
+      ((AbstractBatcher)batcher).setReadOnlyTransaction(false);
+    }
     if ((this.rootSession == null) && (tx != null)) {
       try
       {
@@ -473,10 +499,12 @@ public final class SessionImpl
   {
     errorIfClosed();
     checkTransactionSynchStatus();
+    flushWrittenIfFull();
     SaveOrUpdateEventListener[] saveOrUpdateEventListener = this.listeners.getSaveOrUpdateEventListeners();
     for (int i = 0; i < saveOrUpdateEventListener.length; i++) {
       saveOrUpdateEventListener[i].onSaveOrUpdate(event);
     }
+    writeBehind(event.getObject());
   }
   
   public void save(Object obj, Serializable id)
@@ -507,13 +535,140 @@ public final class SessionImpl
   {
     errorIfClosed();
     checkTransactionSynchStatus();
+    flushWrittenIfFull();
     SaveOrUpdateEventListener[] saveEventListener = this.listeners.getSaveEventListeners();
     for (int i = 0; i < saveEventListener.length; i++) {
       saveEventListener[i].onSaveOrUpdate(event);
     }
+    writeBehind(event.getObject());
     return event.getResultId();
   }
   
+  /**
+   * Bound the number of actions queued since the last flush, as set by
+   * hibernate.jdbc.max_queued_actions. 0 means no bound.
+   */
+  public void setMaxQueuedActions(int maxQueuedActions)
+  {
+    errorIfClosed();
+    this.maxQueuedActions = maxQueuedActions;
+  }
+  
+  public int getMaxQueuedActions()
+  {
+    return this.maxQueuedActions;
+  }
+  
+  /**
+   * Load entities read-only from now on: whatever loads them, queries,
+   * criteria, get(), proxies or lazy collections, takes no loaded state
+   * snapshot of them and flush does not dirty check them. Entities
+   * assembled from the second-level cache are copied as usual and the copy
+   * is dropped after loading. Entities already in the session, refreshed or
+   * loaded into a given instance are not affected. For a single query use
+   * Query.setReadOnly(true).
+   */
+  public void setDefaultReadOnly(boolean defaultReadOnly)
+  {
+    errorIfClosed();
+    this.defaultReadOnly = defaultReadOnly;
+  }
+  
+  public boolean isDefaultReadOnly()
+  {
+    return this.defaultReadOnly;
+  }
+  
+  private void applyDefaultReadOnly(QueryParameters queryParameters)
+  {
+    if (this.defaultReadOnly) {
+      queryParameters.setReadOnly(true);
+    }
+  }
+  
+  /**
+   * Whether entities loaded now are loaded read-only, without a loaded state
+   * snapshot, see {@link org.hibernate.engine.TwoPhaseLoad}: in a session
+   * read-only by default, unless loaded by a refresh or into a given
+   * instance.
+   */
+  public boolean isLoadingReadOnly()
+  {
+    return (this.defaultReadOnly) && (this.writableLoads == 0);
+  }
+  
+  /**
+   * Make an entity just assembled from the second-level cache read-only,
+   * dropping the loaded state copied for it; entities loaded from the
+   * database are already read-only.
+   */
+  private void makeReadOnly(Object entity)
+  {
+    if (!isLoadingReadOnly()) {
+      return;
+    }
+    EntityEntry entry = this.persistenceContext.getEntry(entity);
+    if ((entry != null) && (entry.getStatus() == Status.MANAGED)) {
+      entry.setReadOnly(true, entity);
+    }
+  }
+  
+  /**
+   * Whether writes are counted towards the queued action bound: not when
+   * cascaded from another entity or made during a flush.
+   */
+  private boolean isWriteBehind()
+  {
+    return (this.maxQueuedActions > 0) && (this.persistenceContext.getCascadeLevel() == 0) && (!this.persistenceContext.isFlushing());
+  }
+  
+  /**
+   * Record an entity written by the application, to be evicted once the
+   * bound is reached.
+   */
+  private void writeBehind(Object object)
+  {
+    if (!isWriteBehind()) {
+      return;
+    }
+    if (this.writeBehindEntities == null) {
+      this.writeBehindEntities = new ArrayList();
+    }
+    this.writeBehindEntities.add(object);
+  }
+  
+  /**
+   * Before the next write, once the bound is reached, flush and evict the
+   * entities written since the last flush. Checked before rather than after
+   * a write so that the entity just written stays managed and changes made
+   * to it after the call are still flushed.
+   */
+  private void flushWrittenIfFull()
+  {
+    if ((!isWriteBehind()) || (this.writeBehindEntities == null)) {
+      return;
+    }
+    if ((this.writeBehindEntities.size() < this.maxQueuedActions) && (this.actionQueue.numberOfInsertions() + this.actionQueue.numberOfDeletions() < this.maxQueuedActions)) {
+      return;
+    }
+    List written = this.writeBehindEntities;
+    this.writeBehindEntities = null;
+    this.actionQueue.collectInsertedEntities(written);
+    if (log.isDebugEnabled()) {
+      log.debug("queued action limit of " + this.maxQueuedActions + " reached, flushing and evicting " + written.size() + " entities");
+    }
+    flush();
+    int size = written.size();
+    for (int i = 0; i < size; i++)
+    {
+      Object entity = written.get(i);
+      EntityEntry entry = this.persistenceContext.getEntry(entity);
+      if ((entry != null) && (entry.getStatus() == Status.MANAGED)) {
+        evict(entity);
+      }
+    }
+  }
+  
   public void update(Object obj)
     throws HibernateException
   {
@@ -602,10 +757,12 @@ public final class SessionImpl
   {
     errorIfClosed();
     checkTransactionSynchStatus();
+    flushWrittenIfFull();
     PersistEventListener[] createEventListener = this.listeners.getPersistEventListeners();
     for (int i = 0; i < createEventListener.length; i++) {
       createEventListener[i].onPersist(event);
     }
+    writeBehind(event.getObject());
   }
   
   public void persistOnFlush(String entityName, Object object)
@@ -758,10 +915,12 @@ public final class SessionImpl
   {
     errorIfClosed();
     checkTransactionSynchStatus();
+    flushWrittenIfFull();
     DeleteEventListener[] deleteEventListener = this.listeners.getDeleteEventListeners();
     for (int i = 0; i < deleteEventListener.length; i++) {
       deleteEventListener[i].onDelete(event);
     }
+    writeBehind(event.getObject());
   }
   
   private void fireDelete(DeleteEvent event, Set transientEntities)
@@ -830,6 +989,26 @@ public final class SessionImpl
     }
   }
   
+  /**
+   * Get the entities of the given class with the given identifiers, in the
+   * order of the identifiers and with null for rows that do not exist.
+   * Identifiers not in the session or the second-level cache are fetched
+   * with chunked <tt>in</tt> queries rather than one select each.
+   */
+  public List getMany(Class entityClass, Collection ids)
+    throws HibernateException
+  {
+    return getMany(entityClass.getName(), ids);
+  }
+  
+  public List getMany(String entityName, Collection ids)
+    throws HibernateException
+  {
+    errorIfClosed();
+    checkTransactionSynchStatus();
+    return MultiIdLoader.load(this, getFactory().getEntityPersister(entityName), ids);
+  }
+  
   public Object immediateLoad(String entityName, Serializable id)
     throws HibernateException
   {
@@ -888,9 +1067,22 @@ public final class SessionImpl
   {
     errorIfClosed();
     checkTransactionSynchStatus();
-    LoadEventListener[] loadEventListener = this.listeners.getLoadEventListeners();
-    for (int i = 0; i < loadEventListener.length; i++) {
-      loadEventListener[i].onLoad(event, loadType);
+    boolean writable = event.getInstanceToLoad() != null;
+    if (writable) {
+      this.writableLoads += 1;
+    }
+    try
+    {
+      LoadEventListener[] loadEventListener = this.listeners.getLoadEventListeners();
+      for (int i = 0; i < loadEventListener.length; i++) {
+        loadEventListener[i].onLoad(event, loadType);
+      }
+    }
+    finally
+    {
+      if (writable) {
+        this.writableLoads -= 1;
+      }
     }
   }
   
@@ -916,9 +1108,17 @@ public final class SessionImpl
   {
     errorIfClosed();
     checkTransactionSynchStatus();
-    RefreshEventListener[] refreshEventListener = this.listeners.getRefreshEventListeners();
-    for (int i = 0; i < refreshEventListener.length; i++) {
-      refreshEventListener[i].onRefresh(refreshEvent);
+    this.writableLoads += 1;
+    try
+    {
+      RefreshEventListener[] refreshEventListener = this.listeners.getRefreshEventListeners();
+      for (int i = 0; i < refreshEventListener.length; i++) {
+        refreshEventListener[i].onRefresh(refreshEvent);
+      }
+    }
+    finally
+    {
+      this.writableLoads -= 1;
     }
   }
   
@@ -926,9 +1126,17 @@ public final class SessionImpl
   {
     errorIfClosed();
     checkTransactionSynchStatus();
-    RefreshEventListener[] refreshEventListener = this.listeners.getRefreshEventListeners();
-    for (int i = 0; i < refreshEventListener.length; i++) {
-      refreshEventListener[i].onRefresh(refreshEvent, refreshedAlready);
+    this.writableLoads += 1;
+    try
+    {
+      RefreshEventListener[] refreshEventListener = this.listeners.getRefreshEventListeners();
+      for (int i = 0; i < refreshEventListener.length; i++) {
+        refreshEventListener[i].onRefresh(refreshEvent, refreshedAlready);
+      }
+    }
+    finally
+    {
+      this.writableLoads -= 1;
     }
   }
   
@@ -978,10 +1186,24 @@ public final class SessionImpl
       return false;
     }
     AutoFlushEvent event = new AutoFlushEvent(querySpaces, this);
-    AutoFlushEventListener[] autoFlushEventListener = this.listeners.getAutoFlushEventListeners();
-    for (int i = 0; i < autoFlushEventListener.length; i++) {
-      autoFlushEventListener[i].onAutoFlush(event);
+    int executeCount = this.actionQueue.getExecuteCount();
+    flushStarting();
+    try
+    {
+      AutoFlushEventListener[] autoFlushEventListener = this.listeners.getAutoFlushEventListeners();
+      for (int i = 0; i < autoFlushEventListener.length; i++) {
+        autoFlushEventListener[i].onAutoFlush(event);
+      }
     }
+    finally
+    {
+      if (this.actionQueue.getExecuteCount() != executeCount) {
+        flushEnded();
+      } else {
+        flushSkipped();
+      }
+    }
+    getExtendedStatistics().autoFlushChecked(this.actionQueue.getExecuteCount() != executeCount);
     return event.isFlushRequired();
   }
   
@@ -1012,10 +1234,98 @@ public final class SessionImpl
     if (this.persistenceContext.getCascadeLevel() > 0) {
       throw new HibernateException("Flush during cascade is dangerous");
     }
-    FlushEventListener[] flushEventListener = this.listeners.getFlushEventListeners();
-    for (int i = 0; i < flushEventListener.length; i++) {
-      flushEventListener[i].onFlush(new FlushEvent(this));
+    flushStarting();
+    try
+    {
+      FlushEventListener[] flushEventListener = this.listeners.getFlushEventListeners();
+      for (int i = 0; i < flushEventListener.length; i++) {
+        flushEventListener[i].onFlush(new FlushEvent(this));
+      }
     }
+    finally
+    {
+      flushEnded();
+    }
+  }
+  
+  /**
+   * Flush the session, executing the queued inserts that do not depend on
+   * other rows of the flush in parallel on the given number of connections
+   * of the connection provider, each committed on its own. Meant for
+   * non-transactional bulk loads: the flush is not atomic, and partitions
+   * that failed are rolled back, evicted from the session and reported in
+   * the result while the others stay committed. The remaining actions run
+   * on the session's own connection afterwards.
+   *
+   * @see ParallelInsertExecutor
+   */
+  public BulkFlushResult bulkFlush(int connections)
+    throws HibernateException
+  {
+    errorIfClosed();
+    ParallelInsertExecutor parallelInserts = new ParallelInsertExecutor(this, connections);
+    this.actionQueue.setParallelInsertExecutor(parallelInserts);
+    try
+    {
+      flush();
+    }
+    finally
+    {
+      this.actionQueue.setParallelInsertExecutor(null);
+    }
+    return parallelInserts.getResult();
+  }
+  
+  private void initFlushProfile()
+  {
+    if (ExtendedEnvironment.getBoolean(this.factory, ExtendedEnvironment.FLUSH_PROFILING, false))
+    {
+      this.flushProfile = new FlushProfile();
+      this.actionQueue.setFlushProfile(this.flushProfile);
+    }
+  }
+  
+  /**
+   * The timings of this session's flushes, or null if
+   * hibernate.flush.profiling is not enabled.
+   */
+  public FlushProfile getFlushProfile()
+  {
+    return this.flushProfile;
+  }
+  
+  private void flushStarting()
+  {
+    if (this.flushProfile != null)
+    {
+      this.flushProfile.flushStarted();
+      Batcher batcher = this.jdbcContext.getConnectionManager().getBatcher();
+      if ((batcher instanceof AbstractBatcher)) {
+        ((AbstractBatcher)batcher).setFlushProfile(this.flushProfile);
+      }
+    }
+  }
+  
+  private void flushEnded()
+  {
+    if ((this.flushProfile != null) && (this.flushProfile.flushEnded())) {
+      getExtendedStatistics().flushProfiled(this.flushProfile);
+    }
+  }
+  
+  private void flushSkipped()
+  {
+    if (this.flushProfile != null) {
+      this.flushProfile.flushSkipped();
+    }
+  }
+  
+  private ExtendedStatisticsImpl getExtendedStatistics()
+  {
+    if (this.extendedStatistics == null) {
+      this.extendedStatistics = ExtendedStatisticsImpl.forFactory(this.factory);
+    }
+    return this.extendedStatistics;
   }
   
   public void forceFlush(EntityEntry entityEntry)
@@ -1129,6 +1439,7 @@ public final class SessionImpl
   {
     errorIfClosed();
     checkTransactionSynchStatus();
+    applyDefaultReadOnly(queryParameters);
     queryParameters.validateParameters();
     HQLQueryPlan plan = getHQLQueryPlan(query, false);
     autoFlushIfRequired(plan.getQuerySpaces());
@@ -1220,6 +1531,7 @@ public final class SessionImpl
   {
     errorIfClosed();
     checkTransactionSynchStatus();
+    applyDefaultReadOnly(queryParameters);
     queryParameters.validateParameters();
     HQLQueryPlan plan = getHQLQueryPlan(query, true);
     autoFlushIfRequired(plan.getQuerySpaces());
@@ -1227,7 +1539,7 @@ public final class SessionImpl
     this.dontFlushFromFind += 1;
     try
     {
-      return plan.performIterate(queryParameters, this);
+      return prefetching(plan.performIterate(queryParameters, this));
     }
     finally
     {
@@ -1235,11 +1547,25 @@ public final class SessionImpl
     }
   }
   
+  /**
+   * Wrap the iterator of an iterate query to load its entities in chunks,
+   * if a prefetch size is set.
+   */
+  private Iterator prefetching(Iterator iterator)
+  {
+    int chunkSize = ExtendedEnvironment.getInt(this.factory, ExtendedEnvironment.ITERATE_PREFETCH_SIZE, 0);
+    if ((chunkSize > 1) && ((iterator instanceof IteratorImpl))) {
+      return PrefetchingIterator.prefetching((IteratorImpl)iterator, this, chunkSize);
+    }
+    return iterator;
+  }
+  
   public ScrollableResults scroll(String query, QueryParameters queryParameters)
     throws HibernateException
   {
     errorIfClosed();
     checkTransactionSynchStatus();
+    applyDefaultReadOnly(queryParameters);
     HQLQueryPlan plan = getHQLQueryPlan(query, false);
     autoFlushIfRequired(plan.getQuerySpaces());
     this.dontFlushFromFind += 1;
@@ -1377,6 +1703,7 @@ public final class SessionImpl
       log.warn("Transaction started on non-root session");
     }
     Transaction result = getTransaction();
+    openRoutedConnection();
     result.begin();
     return result;
   }
@@ -1516,6 +1843,7 @@ public final class SessionImpl
   {
     errorIfClosed();
     checkTransactionSynchStatus();
+    applyDefaultReadOnly(queryParameters);
     FilterQueryPlan plan = getFilterQueryPlan(collection, filter, queryParameters, false);
     List results = CollectionHelper.EMPTY_LIST;
     
@@ -1539,8 +1867,9 @@ public final class SessionImpl
   {
     errorIfClosed();
     checkTransactionSynchStatus();
+    applyDefaultReadOnly(queryParameters);
     FilterQueryPlan plan = getFilterQueryPlan(collection, filter, queryParameters, true);
-    return plan.performIterate(queryParameters, this);
+    return prefetching(plan.performIterate(queryParameters, this));
   }
   
   public Criteria createCriteria(Class persistentClass, String alias)
@@ -1571,6 +1900,43 @@ public final class SessionImpl
     return new CriteriaImpl(entityName, this);
   }
   
+  /**
+   * Stream the results of the given query from a forward only cursor,
+   * evicting the entities loaded for each row when the next one is read,
+   * so that reading a large table keeps memory use flat. Rows of a single
+   * column are streamed as values, others as arrays. The stream must be
+   * closed if it is not read to the end.
+   */
+  public Stream stream(Query query)
+    throws HibernateException
+  {
+    errorIfClosed();
+    return ScrollStream.stream(query.scroll(ScrollMode.FORWARD_ONLY), this);
+  }
+  
+  /**
+   * Add the entities loaded from now on to the given list, or stop with
+   * null, returning the list they were added to before.
+   */
+  List setLoadedEntities(List loadedEntities)
+  {
+    List previous = this.loadedEntities;
+    this.loadedEntities = loadedEntities;
+    return previous;
+  }
+  
+  /**
+   * Called after each entity the session loads, see
+   * {@link LoadRecordingPostLoadEventListener}.
+   */
+  void entityLoaded(Object entity)
+  {
+    makeReadOnly(entity);
+    if (this.loadedEntities != null) {
+      this.loadedEntities.add(entity);
+    }
+  }
+  
   public ScrollableResults scroll(CriteriaImpl criteria, ScrollMode scrollMode)
   {
     errorIfClosed();
@@ -1608,17 +1974,13 @@ public final class SessionImpl
     }
     autoFlushIfRequired(spaces);
     
-    List results = Collections.EMPTY_LIST;
+    boolean concurrent = (size > 1) && (ExtendedEnvironment.getBoolean(this.factory, ExtendedEnvironment.CONCURRENT_CRITERIA_IMPLEMENTORS, false)) && (!isTransactionInProgress()) && (!this.actionQueue.hasAnyQueuedActions());
+    List results;
     this.dontFlushFromFind += 1;
     boolean success = false;
     try
     {
-      for (int i = 0; i < size; i++)
-      {
-        List currentResults = loaders[i].list(this);
-        currentResults.addAll(results);
-        results = currentResults;
-      }
+      results = PolymorphicCriteriaLoader.list(loaders, this, concurrent);
       success = true;
     }
     finally
@@ -1688,6 +2050,7 @@ public final class SessionImpl
   {
     errorIfClosed();
     checkTransactionSynchStatus();
+    applyDefaultReadOnly(queryParameters);
     if (log.isTraceEnabled()) {
       log.trace("scroll SQL query: " + customQuery.getSQL());
     }
@@ -1711,6 +2074,7 @@ public final class SessionImpl
   {
     errorIfClosed();
     checkTransactionSynchStatus();
+    applyDefaultReadOnly(queryParameters);
     if (log.isTraceEnabled()) {
       log.trace("SQL query: " + customQuery.getSQL());
     }
@@ -1820,7 +2184,84 @@ public final class SessionImpl
     throws HibernateException
   {
     errorIfClosed();
-    getBatcher().cancelLastQuery();
+    this.jdbcContext.getConnectionManager().getBatcher().cancelLastQuery();
+  }
+  
+  /**
+   * Call the work with a deadline the given number of milliseconds from now:
+   * the statements it runs that have not completed by then are cancelled.
+   * An earlier deadline of an enclosing call is kept, and the previous
+   * deadline is restored when the work returns.
+   */
+  public Object withDeadline(long timeoutMillis, Callable work)
+    throws Exception
+  {
+    errorIfClosed();
+    Batcher batcher = getBatcher();
+    if (!(batcher instanceof AbstractBatcher)) {
+      throw new HibernateException("query deadlines are not supported by " + batcher.getClass().getName());
+    }
+    AbstractBatcher abstractBatcher = (AbstractBatcher)batcher;
+    long previous = abstractBatcher.getQueryDeadline();
+    long deadline = System.currentTimeMillis() + Math.max(0L, timeoutMillis);
+    abstractBatcher.setQueryDeadline(previous > 0L ? Math.min(previous, deadline) : deadline);
+    try
+    {
+      return work.call();
+    }
+    finally
+    {
+      abstractBatcher.setQueryDeadline(previous);
+    }
+  }
+  
+  /**
+   * Route the connections this session opens from now on to a read replica,
+   * if a RoutingConnectionProvider is configured and the session has not
+   * written yet. A connection already held is not switched, except to the
+   * primary at the first write.
+   */
+  public void setReadOnlyConnection(boolean readOnly)
+  {
+    errorIfClosed();
+    Batcher batcher = getBatcher();
+    if ((batcher instanceof AbstractBatcher)) {
+      ((AbstractBatcher)batcher).setReadOnlyConnection(readOnly);
+    }
+  }
+  
+  public boolean isReadOnlyConnection()
+  {
+    Batcher batcher = getBatcher();
+    return ((batcher instanceof AbstractBatcher)) && (((AbstractBatcher)batcher).isReadOnlyConnection());
+  }
+  
+  /**
+   * Route the connection of the current or next transaction to a read
+   * replica, even if the session has written before. Cleared when the
+   * transaction completes; its first write moves it to the primary.
+   */
+  public void setReadOnlyTransaction(boolean readOnly)
+  {
+    errorIfClosed();
+    Batcher batcher = getBatcher();
+    if ((batcher instanceof AbstractBatcher)) {
+      ((AbstractBatcher)batcher).setReadOnlyTransaction(readOnly);
+    }
+  }
+  
+  public boolean isReadOnlyTransaction()
+  {
+    Batcher batcher = getBatcher();
+    return ((batcher instanceof AbstractBatcher)) && (((AbstractBatcher)batcher).isReadOnlyTransaction());
+  }
+  
+  private void openRoutedConnection()
+  {
+    Batcher batcher = this.jdbcContext.getConnectionManager().getBatcher();
+    if ((batcher instanceof AbstractBatcher)) {
+      ((AbstractBatcher)batcher).openRoutedConnection();
+    }
   }
   
   public Interceptor getInterceptor()
@@ -1867,7 +2308,7 @@ public final class SessionImpl
   public SessionStatistics getStatistics()
   {
     checkTransactionSynchStatus();
-    return new SessionStatisticsImpl(this);
+    return new ExtendedSessionStatistics(this, this.flushProfile);
   }
   
   public boolean isEventSource()
@@ -1940,10 +2381,12 @@ public final class SessionImpl
     this.flushBeforeCompletionEnabled = ois.readBoolean();
     this.autoCloseSessionEnabled = ois.readBoolean();
     this.fetchProfile = ((String)ois.readObject());
+    this.maxQueuedActions = ois.readInt();
+    this.defaultReadOnly = ois.readBoolean();
     this.interceptor = ((Interceptor)ois.readObject());
     
     this.factory = SessionFactoryImpl.deserialize(ois);
-    this.listeners = this.factory.getEventListeners();
+    this.listeners = SessionEventListeners.forFactory(this.factory);
     if (isRootSession) {
       this.jdbcContext = JDBCContext.deserialize(ois, this, this.interceptor);
     }
@@ -1986,6 +2429,8 @@ public final class SessionImpl
     oos.writeBoolean(this.flushBeforeCompletionEnabled);
     oos.writeBoolean(this.autoCloseSessionEnabled);
     oos.writeObject(this.fetchProfile);
+    oos.writeInt(this.maxQueuedActions);
+    oos.writeBoolean(this.defaultReadOnly);
     
     oos.writeObject(this.interceptor);
     
@@ -1,25 +1,48 @@
 package org.hibernate.jdbc;
 
+import java.lang.reflect.Field;
 import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.hibernate.AssertionFailure;
 import org.hibernate.HibernateException;
 import org.hibernate.Interceptor;
 import org.hibernate.ScrollMode;
 import org.hibernate.TransactionException;
+import org.hibernate.cfg.ExtendedEnvironment;
 import org.hibernate.cfg.Settings;
 import org.hibernate.connection.ConnectionProvider;
+import org.hibernate.connection.RoutingConnectionProvider;
 import org.hibernate.dialect.Dialect;
 import org.hibernate.engine.SessionFactoryImplementor;
 import org.hibernate.exception.JDBCExceptionHelper;
 import org.hibernate.jdbc.util.FormatStyle;
 import org.hibernate.jdbc.util.SQLStatementLogger;
+import org.hibernate.stat.ExtendedStatisticsImpl;
+import org.hibernate.stat.FlushProfile;
 import org.hibernate.stat.Statistics;
 import org.hibernate.stat.StatisticsImplementor;
 import org.hibernate.util.JDBCExceptionReporter;
@@ -27,46 +50,240 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public abstract class AbstractBatcher implements Batcher {
-	private static int globalOpenPreparedStatementCount;
-	private static int globalOpenResultSetCount;
 	private int openPreparedStatementCount;
 	private int openResultSetCount;
 	protected static final Logger log = LoggerFactory.getLogger(AbstractBatcher.class);
+	private static final Field CONNECTION = connectionField();
 	private final ConnectionManager connectionManager;
 	private final SessionFactoryImplementor factory;
 	private PreparedStatement batchUpdate;
 	private String batchUpdateSQL;
+	private final LinkedHashMap openBatches = new LinkedHashMap();
+	private final int maxOpenBatches;
+	private final TableDependencies tableDependencies;
 	private HashSet statementsToClose = new HashSet();
 	private HashSet resultSetsToClose = new HashSet();
-	private PreparedStatement lastQuery;
+	private final Set activeStatements = Collections.newSetFromMap(new ConcurrentHashMap());
+	private final ConcurrentHashMap deadlineCancellations = new ConcurrentHashMap();
+	private final ConcurrentHashMap multiRowBatches = new ConcurrentHashMap();
+	private volatile long queryDeadline;
 	private boolean releasing = false;
 	private final Interceptor interceptor;
 	private long transactionTimeout = -1L;
 	boolean isTransactionTimeoutSet;
+	private final PreparedStatementCache statementCache;
+	private final ExtendedStatisticsImpl extendedStatistics;
+	private final IdentityHashMap statementSQL = new IdentityHashMap();
+	private final boolean pipelinedFlush;
+	private Future pipelinedBatch;
+	private List pipelinedStatements;
+	private List pipelinedSQL;
+	private final boolean multiRowInserts;
+	private final int multiRowInsertMaxRows;
+	private boolean readOnlyConnection;
+	private boolean readOnlyTransaction;
+	private boolean written;
+	private volatile FlushProfile flushProfile;
 
 	public AbstractBatcher(ConnectionManager connectionManager, Interceptor interceptor) {
 		this.connectionManager = connectionManager;
 		this.interceptor = interceptor;
 		this.factory = connectionManager.getFactory();
+		int statementCacheSize = ExtendedEnvironment.getInt(this.factory, ExtendedEnvironment.STATEMENT_CACHE_SIZE, 0);
+		this.statementCache = statementCacheSize > 0 ? new PreparedStatementCache(statementCacheSize) : null;
+		this.maxOpenBatches = Math.max(1,
+				ExtendedEnvironment.getInt(this.factory, ExtendedEnvironment.MAX_OPEN_BATCHES, 1));
+		this.tableDependencies = this.maxOpenBatches > 1 ? TableDependencies.forFactory(this.factory) : null;
+		this.extendedStatistics = ExtendedStatisticsImpl.forFactory(this.factory);
+		this.pipelinedFlush = ExtendedEnvironment.getBoolean(this.factory, ExtendedEnvironment.PIPELINED_FLUSH, false);
+		this.multiRowInserts = ExtendedEnvironment.getBoolean(this.factory, ExtendedEnvironment.MULTI_ROW_INSERT, false)
+				&& this.factory.getSettings().getJdbcBatchSize() > 1;
+		this.multiRowInsertMaxRows = ExtendedEnvironment.getInt(this.factory, ExtendedEnvironment.MULTI_ROW_INSERT_MAX_ROWS, 100);
 	}
 
 	public void setTransactionTimeout(int seconds) {
 		this.isTransactionTimeoutSet = true;
-		this.transactionTimeout = (System.currentTimeMillis() / 1000L + seconds);
+		this.transactionTimeout = System.currentTimeMillis() + seconds * 1000L;
 	}
 
 	public void unsetTransactionTimeout() {
 		this.isTransactionTimeoutSet = false;
 	}
 
+	/**
+	 * Set the point in time, in milliseconds since the epoch, by which every
+	 * statement prepared from now on must complete. Statements still running
+	 * at the deadline are cancelled. <tt>0</tt> clears the deadline.
+	 */
+	public void setQueryDeadline(long deadlineMillis) {
+		this.queryDeadline = deadlineMillis;
+	}
+
+	public long getQueryDeadline() {
+		return this.queryDeadline;
+	}
+
+	/**
+	 * Ask for a replica connection the next time a connection is opened. Only
+	 * honoured by a {@link RoutingConnectionProvider}, and only as long as this
+	 * batcher has not prepared a write: sessions that have written stay on the
+	 * primary to read their own writes. A replica connection held at the first
+	 * write is swapped for a primary one.
+	 */
+	public void setReadOnlyConnection(boolean readOnly) {
+		this.readOnlyConnection = readOnly;
+	}
+
+	public boolean isReadOnlyConnection() {
+		return this.readOnlyConnection;
+	}
+
+	/**
+	 * Ask for a replica connection for the current or next transaction only,
+	 * whether or not the session has written before; the replica may lag
+	 * behind those writes. Cleared when the transaction completes or as soon
+	 * as it writes.
+	 */
+	public void setReadOnlyTransaction(boolean readOnly) {
+		this.readOnlyTransaction = readOnly;
+	}
+
+	public boolean isReadOnlyTransaction() {
+		return this.readOnlyTransaction;
+	}
+
+	/**
+	 * The profile of the session's flushes, which batch executions are
+	 * reported to, or <tt>null</tt>.
+	 */
+	public void setFlushProfile(FlushProfile flushProfile) {
+		this.flushProfile = flushProfile;
+	}
+
+	public FlushProfile getFlushProfile() {
+		return this.flushProfile;
+	}
+
+	/**
+	 * Is the connection currently held a replica connection?
+	 */
+	public boolean isReplicaConnection() {
+		Connection conn = heldConnection();
+		ConnectionProvider provider = this.factory.getConnectionProvider();
+		return (conn != null) && (provider instanceof RoutingConnectionProvider)
+				&& ((RoutingConnectionProvider) provider).isReplicaConnection(conn);
+	}
+
+	/**
+	 * Hand the connection manager a replica connection if routing asks for
+	 * one and no connection is held yet. The connection manager itself only
+	 * opens primary connections, so this runs before every statement is
+	 * prepared and before the session begins a transaction or hands out its
+	 * connection.
+	 */
+	public void openRoutedConnection() throws HibernateException {
+		if (!(this.readOnlyTransaction || (this.readOnlyConnection && !this.written))
+				|| this.connectionManager.isSuppliedConnection() || (heldConnection() != null)) {
+			return;
+		}
+		ConnectionProvider provider = this.factory.getConnectionProvider();
+		if (!(provider instanceof RoutingConnectionProvider)) {
+			return;
+		}
+		log.debug("opening JDBC connection to the replica");
+		Connection conn;
+		try {
+			conn = ((RoutingConnectionProvider) provider).getReplicaConnection();
+		} catch (SQLException sqle) {
+			throw JDBCExceptionHelper.convert(this.factory.getSQLExceptionConverter(), sqle,
+					"Cannot open replica connection");
+		}
+		this.connectionManager.manualReconnect(conn);
+		if (this.factory.getStatistics().isStatisticsEnabled()) {
+			this.factory.getStatisticsImplementor().connect();
+		}
+	}
+
+	private Connection connection() throws HibernateException {
+		openRoutedConnection();
+		return this.connectionManager.getConnection();
+	}
+
+	private Connection heldConnection() {
+		try {
+			return (Connection) CONNECTION.get(this.connectionManager);
+		} catch (IllegalAccessException e) {
+			throw new AssertionFailure("could not read ConnectionManager.connection", e);
+		}
+	}
+
+	private static Field connectionField() {
+		try {
+			Field field = ConnectionManager.class.getDeclaredField("connection");
+			field.setAccessible(true);
+			return field;
+		} catch (NoSuchFieldException e) {
+			throw new AssertionFailure("ConnectionManager.connection not found", e);
+		}
+	}
+
+	private void beforeWrite() throws HibernateException {
+		this.written = true;
+		this.readOnlyTransaction = false;
+		if (isReplicaConnection()) {
+			switchToPrimary();
+		}
+	}
+
+	/**
+	 * Replace the replica connection held by the connection manager with a
+	 * primary connection, carrying over the auto-commit mode so a transaction
+	 * begun on the replica continues on the primary. Nothing was written on
+	 * the replica, so it is simply returned.
+	 */
+	private void switchToPrimary() throws HibernateException {
+		if (!this.statementsToClose.isEmpty() || !this.resultSetsToClose.isEmpty()) {
+			throw new HibernateException("cannot switch a read-only session to the primary for a write while "
+					+ "results read from the replica are still open");
+		}
+		log.debug("switching from the replica to the primary connection for a write");
+		ConnectionProvider provider = this.factory.getConnectionProvider();
+		Connection replica = this.connectionManager.getConnection();
+		Connection primary = null;
+		try {
+			boolean autoCommit = replica.getAutoCommit();
+			primary = provider.getConnection();
+			if (primary.getAutoCommit() != autoCommit) {
+				primary.setAutoCommit(autoCommit);
+			}
+		} catch (SQLException sqle) {
+			if (primary != null) {
+				try {
+					provider.closeConnection(primary);
+				} catch (SQLException e) {
+					log.warn("could not close primary connection", e);
+				}
+			}
+			throw JDBCExceptionHelper.convert(this.factory.getSQLExceptionConverter(), sqle,
+					"Cannot open primary connection");
+		}
+		this.connectionManager.manualReconnect(primary);
+		closeConnection(replica);
+	}
+
 	protected PreparedStatement getStatement() {
 		return this.batchUpdate;
 	}
 
+	protected String getStatementSQL() {
+		return this.batchUpdateSQL;
+	}
+
 	public CallableStatement prepareCallableStatement(String sql) throws SQLException, HibernateException {
+		beforeWrite();
 		executeBatch();
 		logOpenPreparedStatement();
-		return getCallableStatement(this.connectionManager.getConnection(), sql, false);
+		return getCallableStatement(connection(), sql, false);
 	}
 
 	public PreparedStatement prepareStatement(String sql) throws SQLException, HibernateException {
@@ -75,64 +292,86 @@ public abstract class AbstractBatcher implements Batcher {
 
 	public PreparedStatement prepareStatement(String sql, boolean getGeneratedKeys)
 			throws SQLException, HibernateException {
+		beforeWrite();
 		executeBatch();
 		logOpenPreparedStatement();
-		return getPreparedStatement(this.connectionManager.getConnection(), sql, false, getGeneratedKeys, null, null,
+		return getPreparedStatement(connection(), sql, false, getGeneratedKeys, null, null,
 				false);
 	}
 
 	public PreparedStatement prepareStatement(String sql, String[] columnNames)
 			throws SQLException, HibernateException {
+		beforeWrite();
 		executeBatch();
 		logOpenPreparedStatement();
-		return getPreparedStatement(this.connectionManager.getConnection(), sql, false, false, columnNames, null,
+		return getPreparedStatement(connection(), sql, false, false, columnNames, null,
 				false);
 	}
 
 	public PreparedStatement prepareSelectStatement(String sql) throws SQLException, HibernateException {
+		awaitPipelinedBatch();
 		logOpenPreparedStatement();
-		return getPreparedStatement(this.connectionManager.getConnection(), sql, false, false, null, null, false);
+		return getPreparedStatement(connection(), sql, false, false, null, null, false);
 	}
 
 	public PreparedStatement prepareQueryStatement(String sql, boolean scrollable, ScrollMode scrollMode)
 			throws SQLException, HibernateException {
+		awaitPipelinedBatch();
 		logOpenPreparedStatement();
-		PreparedStatement ps = getPreparedStatement(this.connectionManager.getConnection(), sql, scrollable,
+		PreparedStatement ps = getPreparedStatement(connection(), sql, scrollable,
 				scrollMode);
 
 		setStatementFetchSize(ps);
 		this.statementsToClose.add(ps);
-		this.lastQuery = ps;
 		return ps;
 	}
 
 	public CallableStatement prepareCallableQueryStatement(String sql, boolean scrollable, ScrollMode scrollMode)
 			throws SQLException, HibernateException {
+		awaitPipelinedBatch();
 		logOpenPreparedStatement();
-		CallableStatement ps = (CallableStatement) getPreparedStatement(this.connectionManager.getConnection(), sql,
+		CallableStatement ps = (CallableStatement) getPreparedStatement(connection(), sql,
 				scrollable, false, null, scrollMode, true);
 
 		setStatementFetchSize(ps);
 		this.statementsToClose.add(ps);
-		this.lastQuery = ps;
 		return ps;
 	}
 
 	public void abortBatch(SQLException sqle) {
+		RuntimeException pipelineFailure = finishPipelinedBatch();
 		try {
-			if (this.batchUpdate != null) {
-				closeStatement(this.batchUpdate);
+			Iterator iter = this.openBatches.values().iterator();
+			while (iter.hasNext()) {
+				PreparedStatement ps = (PreparedStatement) iter.next();
+				clearBatch(ps);
+				try {
+					closeStatement(ps);
+				} catch (SQLException e) {
+					JDBCExceptionReporter.logExceptions(e);
+				}
 			}
-		} catch (SQLException e) {
-			JDBCExceptionReporter.logExceptions(e);
 		} finally {
+			this.openBatches.clear();
 			this.batchUpdate = null;
 			this.batchUpdateSQL = null;
 		}
+		if (pipelineFailure != null) {
+			// the batches in flight were issued before the one that failed now
+			if (sqle != null) {
+				pipelineFailure.addSuppressed(sqle);
+			}
+			throw pipelineFailure;
+		}
 	}
 
 	public ResultSet getResultSet(PreparedStatement ps) throws SQLException {
+		long start = System.nanoTime();
 		ResultSet rs = ps.executeQuery();
+		String sql = (String) this.statementSQL.get(ps);
+		if (sql != null) {
+			this.extendedStatistics.statementExecuted(sql, System.nanoTime() - start);
+		}
 		this.resultSetsToClose.add(rs);
 		logOpenResults();
 		return rs;
@@ -160,9 +399,44 @@ public abstract class AbstractBatcher implements Batcher {
 	}
 
 	public PreparedStatement prepareBatchStatement(String sql) throws SQLException, HibernateException {
+		beforeWrite();
 		sql = getSQL(sql);
 		if (!sql.equals(this.batchUpdateSQL)) {
-			this.batchUpdate = prepareStatement(sql);
+			PreparedStatement ps = (PreparedStatement) this.openBatches.get(sql);
+			if (ps != null) {
+				PreparedStatement related = lastRelatedBatchAfter(sql);
+				if (related != null) {
+					// the new row may depend on rows of a batch opened after this one,
+					// so run the batches through that one and make this batch the last
+					executeBatchesThrough(related);
+					ps = (PreparedStatement) this.openBatches.remove(sql);
+					if (ps != null) {
+						this.openBatches.put(sql, ps);
+					}
+				}
+			}
+			if (ps == null) {
+				if (this.openBatches.size() >= this.maxOpenBatches) {
+					executeBatch();
+				}
+				logOpenPreparedStatement();
+				ps = getPreparedStatement(connection(), sql, false, false, null, null,
+						false);
+				if (this.multiRowInserts) {
+					MultiRowInsertRewriter rewriter = MultiRowInsertRewriter.forSQL(sql, this.factory.getDialect(),
+							this.multiRowInsertMaxRows);
+					if (rewriter != null) {
+						PreparedStatement delegate = ps;
+						ps = MultiRowInsertBatch.wrap(delegate, rewriter);
+						this.multiRowBatches.put(delegate, ps);
+					}
+				}
+				this.openBatches.put(sql, ps);
+			} else {
+				log.debug("reusing open batch statement");
+				log(sql);
+			}
+			this.batchUpdate = ps;
 			this.batchUpdateSQL = sql;
 		} else {
 			log.debug("reusing prepared statement");
@@ -172,36 +446,235 @@ public abstract class AbstractBatcher implements Batcher {
 	}
 
 	public CallableStatement prepareBatchCallableStatement(String sql) throws SQLException, HibernateException {
+		beforeWrite();
 		if (!sql.equals(this.batchUpdateSQL)) {
 			this.batchUpdate = prepareCallableStatement(sql);
 			this.batchUpdateSQL = sql;
+			this.openBatches.put(sql, this.batchUpdate);
 		}
 		return (CallableStatement) this.batchUpdate;
 	}
 
 	public void executeBatch() throws HibernateException {
-		if (this.batchUpdate != null) {
-			System.out.println("*** batchUpdateSQL: " + batchUpdateSQL);
-			try {
+		awaitPipelinedBatch();
+		if (this.openBatches.isEmpty()) {
+			return;
+		}
+		Iterator iter = this.openBatches.entrySet().iterator();
+		try {
+			while (iter.hasNext()) {
+				Map.Entry entry = (Map.Entry) iter.next();
+				String sql = (String) entry.getKey();
+				PreparedStatement ps = (PreparedStatement) entry.getValue();
+				iter.remove();
 				try {
-					doExecuteBatch(this.batchUpdate);
-				} finally {
-					closeStatement(this.batchUpdate);
+					try {
+						doExecuteBatch(ps);
+					} finally {
+						closeStatement(ps);
+					}
+				} catch (SQLException sqle) {
+					throw JDBCExceptionHelper.convert(this.factory.getSQLExceptionConverter(), sqle,
+							"Could not execute JDBC batch update", sql);
 				}
-			} catch (SQLException sqle) {
-				sqle.printStackTrace();
-				throw JDBCExceptionHelper.convert(this.factory.getSQLExceptionConverter(), sqle,
-						"Could not execute JDBC batch update", this.batchUpdateSQL);
-			} finally {
+			}
+		} finally {
+			if (!this.openBatches.isEmpty()) {
+				abortBatch(null);
+			}
+			this.batchUpdate = null;
+			this.batchUpdateSQL = null;
+		}
+	}
+
+	/**
+	 * The last batch opened after the one of the given SQL whose table may be
+	 * joined by a foreign key to the table of the given SQL, or <tt>null</tt>
+	 * if rows can be added to that batch without running the later ones.
+	 */
+	private PreparedStatement lastRelatedBatchAfter(String sql) {
+		PreparedStatement related = null;
+		boolean after = false;
+		Iterator iter = this.openBatches.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry entry = (Map.Entry) iter.next();
+			if (after) {
+				if (this.tableDependencies.isRelated(sql, (String) entry.getKey())) {
+					related = (PreparedStatement) entry.getValue();
+				}
+			} else {
+				after = sql.equals(entry.getKey());
+			}
+		}
+		return related;
+	}
+
+	/**
+	 * Execute, without closing them, every open batch up to and including the
+	 * given one. Used when a batch reaches its size limit: batches opened
+	 * earlier may hold rows the full batch depends on.
+	 */
+	protected void executeBatchesThrough(PreparedStatement ps) throws SQLException, HibernateException {
+		if (this.pipelinedFlush) {
+			submitBatchesThrough(ps);
+			return;
+		}
+		awaitPipelinedBatch();
+		Iterator iter = this.openBatches.values().iterator();
+		while (iter.hasNext()) {
+			PreparedStatement batch = (PreparedStatement) iter.next();
+			doExecuteBatch(batch);
+			if (batch == ps) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Like {@link #executeBatch()}, but with a pipelined flush the open
+	 * batches are executed in the background and only waited for by the
+	 * next operation that needs their results.
+	 */
+	public void executeBatchAsync() throws HibernateException {
+		if (this.pipelinedFlush) {
+			submitBatchesThrough(null);
+		} else {
+			executeBatch();
+		}
+	}
+
+	/**
+	 * Detach every open batch up to and including the given one (all of them
+	 * for <tt>null</tt>) and execute them, in order, on the pipeline
+	 * executor. At most one such group is in flight per session.
+	 */
+	private void submitBatchesThrough(PreparedStatement ps) throws HibernateException {
+		awaitPipelinedBatch();
+		final List statements = new ArrayList();
+		final List sqls = new ArrayList();
+		Iterator iter = this.openBatches.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry entry = (Map.Entry) iter.next();
+			iter.remove();
+			if (log.isDebugEnabled()) {
+				log.debug("submitting pipelined batch: " + entry.getKey());
+			}
+			sqls.add(entry.getKey());
+			statements.add(entry.getValue());
+			if (entry.getValue() == this.batchUpdate) {
 				this.batchUpdate = null;
 				this.batchUpdateSQL = null;
 			}
+			if (entry.getValue() == ps) {
+				break;
+			}
+		}
+		if (statements.isEmpty()) {
+			return;
+		}
+		this.pipelinedStatements = statements;
+		this.pipelinedSQL = sqls;
+		this.pipelinedBatch = PipelineExecutor.EXECUTOR.submit(new Callable() {
+			public Object call() throws Exception {
+				for (int i = 0; i < statements.size(); i++) {
+					try {
+						doExecuteBatch((PreparedStatement) statements.get(i));
+					} catch (SQLException sqle) {
+						throw new PipelinedBatchException(i, sqle);
+					}
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Wait for the batches handed to the pipeline executor, close their
+	 * statements and report the first failure the same way
+	 * {@link #executeBatch()} would have.
+	 */
+	private void awaitPipelinedBatch() throws HibernateException {
+		if (this.pipelinedBatch == null) {
+			return;
+		}
+		Future batch = this.pipelinedBatch;
+		List statements = this.pipelinedStatements;
+		List sqls = this.pipelinedSQL;
+		this.pipelinedBatch = null;
+		this.pipelinedStatements = null;
+		this.pipelinedSQL = null;
+		Throwable failure = null;
+		try {
+			batch.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failure = e;
+		} catch (ExecutionException e) {
+			failure = e.getCause();
+		} finally {
+			for (int i = 0; i < statements.size(); i++) {
+				PreparedStatement ps = (PreparedStatement) statements.get(i);
+				clearBatch(ps);
+				try {
+					closeStatement(ps);
+				} catch (SQLException e) {
+					log.warn("Could not close a JDBC prepared statement", e);
+				}
+			}
 		}
+		if (failure instanceof PipelinedBatchException) {
+			PipelinedBatchException pbe = (PipelinedBatchException) failure;
+			SQLException sqle = (SQLException) pbe.getCause();
+			throw JDBCExceptionHelper.convert(this.factory.getSQLExceptionConverter(), sqle,
+					"Could not execute JDBC batch update", (String) sqls.get(pbe.index));
+		}
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		}
+		if (failure instanceof Error) {
+			throw (Error) failure;
+		}
+		if (failure != null) {
+			throw new HibernateException("Could not execute JDBC batch update", failure);
+		}
+	}
+
+	/**
+	 * Wait for the batches in flight and return their failure instead of
+	 * throwing it, so that the caller can release its statements first.
+	 */
+	private RuntimeException finishPipelinedBatch() {
+		try {
+			awaitPipelinedBatch();
+			return null;
+		} catch (RuntimeException e) {
+			return e;
+		}
+	}
+
+	/**
+	 * Forget any statements added to the given batch without executing them.
+	 */
+	protected void clearBatch(PreparedStatement ps) {
 	}
 
 	public void closeStatement(PreparedStatement ps) throws SQLException {
 		logClosePreparedStatement();
-		closePreparedStatement(ps);
+		closePreparedStatement(unwrapBatch(ps));
+	}
+
+	/**
+	 * Close the statements of a multi row insert batch and return the single
+	 * row statement it was built on.
+	 */
+	private PreparedStatement unwrapBatch(PreparedStatement ps) {
+		MultiRowInsertBatch batch = MultiRowInsertBatch.getBatch(ps);
+		if (batch == null) {
+			return ps;
+		}
+		this.multiRowBatches.remove(batch.getDelegate());
+		batch.closeRewrittenStatements();
+		return batch.getDelegate();
 	}
 
 	private void closeQueryStatement(PreparedStatement ps) throws SQLException {
@@ -218,25 +691,32 @@ public abstract class AbstractBatcher implements Batcher {
 		} finally {
 			closeStatement(ps);
 		}
-		if (this.lastQuery == ps) {
-			this.lastQuery = null;
-		}
 	}
 
 	public void closeStatements() {
+		RuntimeException pipelineFailure = finishPipelinedBatch();
 		try {
 			this.releasing = true;
-			try {
-				if (this.batchUpdate != null) {
-					this.batchUpdate.close();
+			Iterator iter;
+			iter = this.openBatches.values().iterator();
+			while (iter.hasNext()) {
+				PreparedStatement ps = (PreparedStatement) iter.next();
+				clearBatch(ps);
+				ps = unwrapBatch(ps);
+				logClosePreparedStatement();
+				this.statementSQL.remove(ps);
+				statementFinished(ps);
+				try {
+					ps.close();
+				} catch (SQLException sqle) {
+					log.warn("Could not close a JDBC prepared statement", sqle);
 				}
-			} catch (SQLException sqle) {
-				log.warn("Could not close a JDBC prepared statement", sqle);
 			}
+			this.openBatches.clear();
 			this.batchUpdate = null;
 			this.batchUpdateSQL = null;
 
-			Iterator iter = this.resultSetsToClose.iterator();
+			iter = this.resultSetsToClose.iterator();
 			while (iter.hasNext()) {
 				try {
 					logCloseResults();
@@ -269,6 +749,9 @@ public abstract class AbstractBatcher implements Batcher {
 		} finally {
 			this.releasing = false;
 		}
+		if (pipelineFailure != null) {
+			throw pipelineFailure;
+		}
 	}
 
 	protected abstract void doExecuteBatch(PreparedStatement paramPreparedStatement)
@@ -276,49 +759,57 @@ public abstract class AbstractBatcher implements Batcher {
 
 	private String preparedStatementCountsToString() {
 		return " (open PreparedStatements: " + this.openPreparedStatementCount + ", globally: "
-				+ globalOpenPreparedStatementCount + ")";
+				+ (this.extendedStatistics.getPreparedStatementOpenCount()
+						- this.extendedStatistics.getPreparedStatementCloseCount())
+				+ ")";
 	}
 
 	private String resultSetCountsToString() {
-		return " (open ResultSets: " + this.openResultSetCount + ", globally: " + globalOpenResultSetCount + ")";
+		return " (open ResultSets: " + this.openResultSetCount + ", globally: "
+				+ (this.extendedStatistics.getResultSetOpenCount() - this.extendedStatistics.getResultSetCloseCount())
+				+ ")";
 	}
 
 	private void logOpenPreparedStatement() {
 		if (log.isDebugEnabled()) {
 			log.debug("about to open PreparedStatement" + preparedStatementCountsToString());
-			this.openPreparedStatementCount += 1;
-			globalOpenPreparedStatementCount += 1;
 		}
+		this.openPreparedStatementCount += 1;
+		this.extendedStatistics.preparedStatementOpened();
 	}
 
 	private void logClosePreparedStatement() {
 		if (log.isDebugEnabled()) {
 			log.debug("about to close PreparedStatement" + preparedStatementCountsToString());
-			this.openPreparedStatementCount -= 1;
-			globalOpenPreparedStatementCount -= 1;
 		}
+		this.openPreparedStatementCount -= 1;
+		this.extendedStatistics.preparedStatementClosed();
 	}
 
 	private void logOpenResults() {
 		if (log.isDebugEnabled()) {
 			log.debug("about to open ResultSet" + resultSetCountsToString());
-			this.openResultSetCount += 1;
-			globalOpenResultSetCount += 1;
 		}
+		this.openResultSetCount += 1;
+		this.extendedStatistics.resultSetOpened();
 	}
 
 	private void logCloseResults() {
 		if (log.isDebugEnabled()) {
 			log.debug("about to close ResultSet" + resultSetCountsToString());
-			this.openResultSetCount -= 1;
-			globalOpenResultSetCount -= 1;
 		}
+		this.openResultSetCount -= 1;
+		this.extendedStatistics.resultSetClosed();
 	}
 
 	protected SessionFactoryImplementor getFactory() {
 		return this.factory;
 	}
 
+	protected ExtendedStatisticsImpl getExtendedStatistics() {
+		return this.extendedStatistics;
+	}
+
 	private void log(String sql) {
 		this.factory.getSettings().getSqlStatementLogger().logStatement(sql, FormatStyle.BASIC);
 	}
@@ -337,10 +828,14 @@ public abstract class AbstractBatcher implements Batcher {
 		log(sql);
 
 		log.trace("preparing callable statement");
+		CallableStatement result;
 		if (scrollable) {
-			return conn.prepareCall(sql, 1004, 1007);
+			result = conn.prepareCall(sql, 1004, 1007);
+		} else {
+			result = conn.prepareCall(sql);
 		}
-		return conn.prepareCall(sql);
+		this.activeStatements.add(result);
+		return result;
 	}
 
 	private String getSQL(String sql) {
@@ -362,8 +857,26 @@ public abstract class AbstractBatcher implements Batcher {
 		}
 		sql = getSQL(sql);
 		log(sql);
+		long deadline = getDeadline();
+
+		PreparedStatementCache.Key cacheKey = null;
+		if (this.statementCache != null) {
+			cacheKey = new PreparedStatementCache.Key(sql, scrollable ? scrollMode.toResultSetType() : 0,
+					useGetGeneratedKeys, namedGeneratedKeys, callable);
+			PreparedStatement cached = this.statementCache.checkout(conn, cacheKey);
+			if (cached != null) {
+				log.trace("reusing cached statement");
+				this.statementSQL.put(cached, sql);
+				setTimeout(cached, deadline);
+				if (this.factory.getStatistics().isStatisticsEnabled()) {
+					this.factory.getStatisticsImplementor().prepareStatement();
+				}
+				return cached;
+			}
+		}
 
 		log.trace("preparing statement");
+		long start = System.nanoTime();
 		PreparedStatement result;
 		if (scrollable) {
 			if (callable) {
@@ -386,27 +899,83 @@ public abstract class AbstractBatcher implements Batcher {
 				}
 			}
 		}
-		setTimeout(result);
+		this.extendedStatistics.statementPrepared(sql, System.nanoTime() - start);
+		this.statementSQL.put(result, sql);
+		if (cacheKey != null) {
+			this.statementCache.register(cacheKey, result);
+		}
+		setTimeout(result, deadline);
 		if (this.factory.getStatistics().isStatisticsEnabled()) {
 			this.factory.getStatisticsImplementor().prepareStatement();
 		}
 		return result;
 	}
 
-	private void setTimeout(PreparedStatement result) throws SQLException {
-		if (this.isTransactionTimeoutSet) {
-			int timeout = (int) (this.transactionTimeout - System.currentTimeMillis() / 1000L);
-			if (timeout <= 0) {
+	/**
+	 * The time in milliseconds by which the next statement must complete, or
+	 * <tt>0</tt> for none. Checked before a statement is prepared, so that an
+	 * expired deadline does not leave a prepared statement behind.
+	 */
+	private long getDeadline() throws HibernateException {
+		long queryDeadline = this.queryDeadline;
+		boolean transactionDeadline = (this.isTransactionTimeoutSet)
+				&& ((queryDeadline <= 0L) || (this.transactionTimeout <= queryDeadline));
+		long deadline = transactionDeadline ? this.transactionTimeout : queryDeadline;
+		if ((deadline > 0L) && (deadline <= System.currentTimeMillis())) {
+			if (transactionDeadline) {
 				throw new TransactionException("transaction timeout expired");
 			}
-			result.setQueryTimeout(timeout);
+			throw new HibernateException("query deadline expired");
+		}
+		return deadline;
+	}
+
+	private void setTimeout(PreparedStatement result, long deadline) throws SQLException {
+		this.activeStatements.add(result);
+		if (deadline <= 0L) {
+			return;
+		}
+		// a deadline that passed while the statement was prepared cancels it at once
+		long remaining = Math.max(1L, deadline - System.currentTimeMillis());
+		// JDBC timeouts are whole seconds: round up and cancel at the exact deadline ourselves
+		result.setQueryTimeout((int) ((remaining + 999L) / 1000L));
+		final PreparedStatement statement = result;
+		ScheduledFuture cancellation = DeadlineTimer.TIMER.schedule(new Runnable() {
+			public void run() {
+				try {
+					cancel(statement);
+				} catch (SQLException e) {
+					log.debug("could not cancel statement at its deadline", e);
+				}
+			}
+		}, remaining, TimeUnit.MILLISECONDS);
+		ScheduledFuture previous = (ScheduledFuture) this.deadlineCancellations.put(result, cancellation);
+		if (previous != null) {
+			previous.cancel(false);
+		}
+	}
+
+	private void statementFinished(PreparedStatement ps) {
+		this.activeStatements.remove(ps);
+		ScheduledFuture cancellation = (ScheduledFuture) this.deadlineCancellations.remove(ps);
+		if (cancellation != null) {
+			cancellation.cancel(false);
 		}
 	}
 
 	private void closePreparedStatement(PreparedStatement ps) throws SQLException {
+		this.statementSQL.remove(ps);
+		statementFinished(ps);
 		try {
-			log.trace("closing statement");
-			ps.close();
+			// statistics count statements handed out and back, so a cached
+			// statement is counted closed when it is checked in and not again
+			// when the cache evicts it
+			if ((this.statementCache != null) && (this.statementCache.checkin(ps))) {
+				log.trace("returning statement to cache");
+			} else {
+				log.trace("closing statement");
+				ps.close();
+			}
 			if (this.factory.getStatistics().isStatisticsEnabled()) {
 				this.factory.getStatisticsImplementor().closeStatement();
 			}
@@ -442,6 +1011,9 @@ public abstract class AbstractBatcher implements Batcher {
 		if (log.isDebugEnabled()) {
 			log.debug("closing JDBC connection" + preparedStatementCountsToString() + resultSetCountsToString());
 		}
+		if (this.statementCache != null) {
+			this.statementCache.clear();
+		}
 		try {
 			if (!conn.isClosed()) {
 				JDBCExceptionReporter.logAndClearWarnings(conn);
@@ -452,14 +1024,35 @@ public abstract class AbstractBatcher implements Batcher {
 		}
 	}
 
+	/**
+	 * Cancel every statement this batcher currently has open. Safe to call
+	 * from a thread other than the one using the session.
+	 */
 	public void cancelLastQuery() throws HibernateException {
-		try {
-			if (this.lastQuery != null) {
-				this.lastQuery.cancel();
+		SQLException failure = null;
+		Iterator iter = this.activeStatements.iterator();
+		while (iter.hasNext()) {
+			try {
+				cancel((PreparedStatement) iter.next());
+			} catch (SQLException sqle) {
+				if (failure == null) {
+					failure = sqle;
+				} else {
+					failure.addSuppressed(sqle);
+				}
 			}
-		} catch (SQLException sqle) {
-			throw JDBCExceptionHelper.convert(this.factory.getSQLExceptionConverter(), sqle, "Cannot cancel query");
 		}
+		if (failure != null) {
+			throw JDBCExceptionHelper.convert(this.factory.getSQLExceptionConverter(), failure, "Cannot cancel query");
+		}
+	}
+
+	/**
+	 * Cancel a statement, or the multi row insert it is the delegate of.
+	 */
+	private void cancel(PreparedStatement ps) throws SQLException {
+		PreparedStatement batch = (PreparedStatement) this.multiRowBatches.get(ps);
+		(batch == null ? ps : batch).cancel();
 	}
 
 	public boolean hasOpenResources() {
@@ -469,4 +1062,52 @@ public abstract class AbstractBatcher implements Batcher {
 	public String openResourceStatsAsString() {
 		return preparedStatementCountsToString() + resultSetCountsToString();
 	}
+
+	public long getStatementCacheHitCount() {
+		return this.statementCache == null ? 0L : this.statementCache.getHitCount();
+	}
+
+	public long getStatementCacheMissCount() {
+		return this.statementCache == null ? 0L : this.statementCache.getMissCount();
+	}
+
+	public long getStatementCacheEvictionCount() {
+		return this.statementCache == null ? 0L : this.statementCache.getEvictionCount();
+	}
+
+	private static class PipelinedBatchException extends Exception {
+		private final int index;
+
+		PipelinedBatchException(int index, SQLException cause) {
+			super(cause);
+			this.index = index;
+		}
+	}
+
+	private static class PipelineExecutor {
+		private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "hibernate-batch-pipeline-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	private static class DeadlineTimer {
+		private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1,
+				new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "hibernate-statement-deadline");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+
+		static {
+			TIMER.setRemoveOnCancelPolicy(true);
+		}
+	}
 }
@@ -0,0 +1,147 @@
+package org.hibernate.jdbc;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chooses the JDBC batch size per SQL string by hill climbing on measured
+ * throughput (rows per second). Only full batches are measured, and a batch
+ * slower than the configured latency limit always shrinks the size.
+ */
+public class AdaptiveBatchSizeController {
+	private static final Logger log = LoggerFactory.getLogger(AdaptiveBatchSizeController.class);
+
+	/** Number of full batches measured before the size is reconsidered. */
+	private static final int SAMPLES_PER_STEP = 4;
+	private static final int HISTORY_LENGTH = 16;
+
+	private final int initialSize;
+	private final int minSize;
+	private final int maxSize;
+	private final long maxLatencyNanos;
+	private final ConcurrentHashMap<String, SqlBatchSize> sizes = new ConcurrentHashMap<String, SqlBatchSize>();
+
+	public AdaptiveBatchSizeController(int initialSize, int minSize, int maxSize, long maxLatencyMillis) {
+		this.minSize = Math.max(1, minSize);
+		this.maxSize = Math.max(this.minSize, maxSize);
+		this.initialSize = Math.min(this.maxSize, Math.max(this.minSize, initialSize));
+		this.maxLatencyNanos = maxLatencyMillis * 1000000L;
+	}
+
+	public SqlBatchSize getBatchSize(String sql) {
+		SqlBatchSize size = this.sizes.get(sql);
+		if (size == null) {
+			SqlBatchSize created = new SqlBatchSize(sql, this.initialSize);
+			size = this.sizes.putIfAbsent(sql, created);
+			if (size == null) {
+				size = created;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * The batch size of a SQL string that has been batched, or <tt>null</tt>.
+	 */
+	public SqlBatchSize findBatchSize(String sql) {
+		return this.sizes.get(sql);
+	}
+
+	public String[] getSQLs() {
+		return this.sizes.keySet().toArray(new String[0]);
+	}
+
+	/**
+	 * Current batch size and recent history for one SQL string.
+	 */
+	public final class SqlBatchSize {
+		private final String sql;
+		private volatile int current;
+		private int direction = 1;
+		private int samples;
+		private long sampleRows;
+		private long sampleNanos;
+		private double previousThroughput;
+		private final int[] history = new int[HISTORY_LENGTH];
+		private int historyCount;
+
+		SqlBatchSize(String sql, int initial) {
+			this.sql = sql;
+			this.current = initial;
+			record(initial);
+		}
+
+		public int getCurrent() {
+			return this.current;
+		}
+
+		/**
+		 * The sizes this SQL string has used, oldest first.
+		 */
+		public synchronized int[] getHistory() {
+			int length = Math.min(this.historyCount, HISTORY_LENGTH);
+			int[] result = new int[length];
+			int start = this.historyCount - length;
+			for (int i = 0; i < length; i++) {
+				result[i] = this.history[(start + i) % HISTORY_LENGTH];
+			}
+			return result;
+		}
+
+		/**
+		 * Report an executed batch.
+		 */
+		public synchronized void batchExecuted(int rows, long nanos) {
+			if ((maxLatencyNanos > 0) && (nanos > maxLatencyNanos) && (this.current > minSize)) {
+				resize(Math.max(minSize, this.current / 2), -1);
+				return;
+			}
+			if (rows < this.current) {
+				// a partial batch says nothing about the current size
+				return;
+			}
+			this.sampleRows += rows;
+			this.sampleNanos += Math.max(1L, nanos);
+			if (++this.samples < SAMPLES_PER_STEP) {
+				return;
+			}
+			double throughput = (double) this.sampleRows / this.sampleNanos;
+			if (throughput < this.previousThroughput) {
+				this.direction = -this.direction;
+			}
+			this.previousThroughput = throughput;
+			int next = this.direction > 0 ? this.current + Math.max(1, this.current / 2)
+					: this.current - Math.max(1, this.current / 3);
+			next = Math.min(maxSize, Math.max(minSize, next));
+			if (next == this.current) {
+				this.direction = -this.direction;
+				resetSamples();
+				return;
+			}
+			resize(next, this.direction);
+		}
+
+		private void resize(int size, int newDirection) {
+			if (log.isDebugEnabled()) {
+				log.debug("batch size for [" + this.sql + "] changed from " + this.current + " to " + size);
+			}
+			this.current = size;
+			this.direction = newDirection;
+			resetSamples();
+			record(size);
+		}
+
+		private void resetSamples() {
+			this.samples = 0;
+			this.sampleRows = 0L;
+			this.sampleNanos = 0L;
+		}
+
+		private void record(int size) {
+			this.history[this.historyCount % HISTORY_LENGTH] = size;
+			this.historyCount++;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package org.hibernate.jdbc;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.hibernate.HibernateException;
+import org.hibernate.Interceptor;
+import org.hibernate.stat.ExtendedStatisticsImpl;
+import org.hibernate.stat.FlushProfile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class BatchingBatcher extends AbstractBatcher {
+	private static final Logger log = LoggerFactory.getLogger(BatchingBatcher.class);
+	private final Map batches = Collections.synchronizedMap(new IdentityHashMap());
+	private final AdaptiveBatchSizeController batchSizeController;
+
+	public BatchingBatcher(ConnectionManager connectionManager, Interceptor interceptor) {
+		super(connectionManager, interceptor);
+		this.batchSizeController = ExtendedStatisticsImpl.forFactory(getFactory()).getBatchSizeController();
+	}
+
+	public void addToBatch(Expectation expectation) throws SQLException, HibernateException {
+		if (!expectation.canBeBatched()) {
+			throw new HibernateException("attempting to batch an operation which cannot be batched");
+		}
+		PreparedStatement batchUpdate = getStatement();
+		batchUpdate.addBatch();
+		Batch batch = (Batch) this.batches.get(batchUpdate);
+		if (batch == null) {
+			batch = new Batch(getStatementSQL());
+			this.batches.put(batchUpdate, batch);
+		}
+		batch.expectations.add(expectation);
+		if (batch.expectations.size() >= batch.getSize()) {
+			executeBatchesThrough(batchUpdate);
+		}
+	}
+
+	protected void doExecuteBatch(PreparedStatement ps) throws SQLException, HibernateException {
+		Batch batch = (Batch) this.batches.remove(ps);
+		if ((batch == null) || (batch.expectations.isEmpty())) {
+			log.debug("no batched statements to execute");
+			return;
+		}
+		int batchSize = batch.expectations.size();
+		if (log.isDebugEnabled()) {
+			log.debug("Executing batch size: " + batchSize);
+		}
+		try {
+			long start = System.nanoTime();
+			int[] rowCounts = ps.executeBatch();
+			long elapsed = System.nanoTime() - start;
+			getExtendedStatistics().batchExecuted(batch.sql, batchSize, elapsed);
+			FlushProfile profile = getFlushProfile();
+			if (profile != null) {
+				profile.batchExecuted(batch.sql, batchSize, elapsed);
+			}
+			if (batch.size != null) {
+				batch.size.batchExecuted(batchSize, elapsed);
+			}
+			checkRowCounts(rowCounts, ps, batch.expectations);
+		} catch (RuntimeException re) {
+			log.error("Exception executing batch: ", re);
+			throw re;
+		}
+	}
+
+	protected void clearBatch(PreparedStatement ps) {
+		this.batches.remove(ps);
+	}
+
+	private void checkRowCounts(int[] rowCounts, PreparedStatement ps, List expectations)
+			throws SQLException, HibernateException {
+		int numberOfRowCounts = rowCounts.length;
+		if (numberOfRowCounts != expectations.size()) {
+			log.warn("JDBC driver did not return the expected number of row counts");
+		}
+		for (int i = 0; i < numberOfRowCounts; i++) {
+			((Expectation) expectations.get(i)).verifyOutcome(rowCounts[i], ps, i);
+		}
+	}
+
+	private class Batch {
+		private final String sql;
+		private final List expectations;
+		private final AdaptiveBatchSizeController.SqlBatchSize size;
+
+		Batch(String sql) {
+			this.sql = sql;
+			this.size = batchSizeController == null ? null : batchSizeController.getBatchSize(sql);
+			this.expectations = new ArrayList(getSize());
+		}
+
+		int getSize() {
+			return this.size == null ? getFactory().getSettings().getJdbcBatchSize() : this.size.getCurrent();
+		}
+	}
+}
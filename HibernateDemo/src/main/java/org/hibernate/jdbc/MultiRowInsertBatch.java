@@ -0,0 +1,216 @@
+package org.hibernate.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A batch statement for a single row insert that records the parameters of
+ * each added row and, on <tt>executeBatch()</tt>, sends them as multi row
+ * inserts built by a {@link MultiRowInsertRewriter}.
+ */
+class MultiRowInsertBatch implements InvocationHandler {
+	private static final Logger log = LoggerFactory.getLogger(MultiRowInsertBatch.class);
+
+	private final PreparedStatement delegate;
+	private final MultiRowInsertRewriter rewriter;
+	private final List<Binding[]> rows = new ArrayList<Binding[]>();
+	private final List<Binding> currentRow = new ArrayList<Binding>();
+	private final Map<Integer, PreparedStatement> statements = new HashMap<Integer, PreparedStatement>();
+	private volatile PreparedStatement executing;
+
+	private MultiRowInsertBatch(PreparedStatement delegate, MultiRowInsertRewriter rewriter) {
+		this.delegate = delegate;
+		this.rewriter = rewriter;
+	}
+
+	static PreparedStatement wrap(PreparedStatement delegate, MultiRowInsertRewriter rewriter) {
+		return (PreparedStatement) Proxy.newProxyInstance(MultiRowInsertBatch.class.getClassLoader(),
+				new Class[] { PreparedStatement.class }, new MultiRowInsertBatch(delegate, rewriter));
+	}
+
+	/**
+	 * The batch behind the given statement, or <tt>null</tt> if it is a
+	 * plain statement.
+	 */
+	static MultiRowInsertBatch getBatch(PreparedStatement ps) {
+		if (Proxy.isProxyClass(ps.getClass())) {
+			InvocationHandler handler = Proxy.getInvocationHandler(ps);
+			if (handler instanceof MultiRowInsertBatch) {
+				return (MultiRowInsertBatch) handler;
+			}
+		}
+		return null;
+	}
+
+	PreparedStatement getDelegate() {
+		return this.delegate;
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		String name = method.getName();
+		if (name.startsWith("set") && (args != null) && (args.length >= 2) && (args[0] instanceof Integer)) {
+			this.currentRow.add(new Binding(method, args));
+			return null;
+		}
+		if ((args == null) || (args.length == 0)) {
+			if ("addBatch".equals(name)) {
+				this.rows.add(this.currentRow.toArray(new Binding[this.currentRow.size()]));
+				this.currentRow.clear();
+				return null;
+			}
+			if ("clearParameters".equals(name)) {
+				this.currentRow.clear();
+				return null;
+			}
+			if ("clearBatch".equals(name)) {
+				this.rows.clear();
+				return null;
+			}
+			if ("executeBatch".equals(name)) {
+				return executeBatch();
+			}
+			if ("executeUpdate".equals(name) || "execute".equals(name)) {
+				bind(this.currentRow.toArray(new Binding[this.currentRow.size()]), this.delegate, 0);
+			}
+			if ("close".equals(name)) {
+				closeRewrittenStatements();
+			}
+			if ("cancel".equals(name)) {
+				cancel();
+				return null;
+			}
+			if ("hashCode".equals(name)) {
+				return Integer.valueOf(System.identityHashCode(proxy));
+			}
+			if ("toString".equals(name)) {
+				return "MultiRowInsertBatch[" + this.delegate + "]";
+			}
+		}
+		if ("equals".equals(name) && (args != null) && (args.length == 1)) {
+			return Boolean.valueOf(proxy == args[0]);
+		}
+		try {
+			return method.invoke(this.delegate, args);
+		} catch (InvocationTargetException e) {
+			throw e.getTargetException();
+		}
+	}
+
+	private int[] executeBatch() throws SQLException {
+		int total = this.rows.size();
+		int[] result = new int[total];
+		int maxRows = this.rewriter.getMaxRows();
+		int parametersPerRow = this.rewriter.getParametersPerRow();
+		try {
+			int offset = 0;
+			while (offset < total) {
+				int chunk = Math.min(maxRows, total - offset);
+				PreparedStatement ps = chunk == 1 ? this.delegate : getStatement(chunk);
+				for (int i = 0; i < chunk; i++) {
+					bind(this.rows.get(offset + i), ps, i * parametersPerRow);
+				}
+				this.executing = ps;
+				int rowCount = ps.executeUpdate();
+				Arrays.fill(result, offset, offset + chunk, rowCount == chunk ? 1 : Statement.SUCCESS_NO_INFO);
+				offset += chunk;
+			}
+		} finally {
+			this.executing = null;
+			this.rows.clear();
+		}
+		return result;
+	}
+
+	/**
+	 * Cancel the statement executing a chunk of rows, which may be one of
+	 * the multi row statements, from any thread.
+	 */
+	private void cancel() throws SQLException {
+		PreparedStatement ps = this.executing;
+		(ps == null ? this.delegate : ps).cancel();
+	}
+
+	private PreparedStatement getStatement(int rows) throws SQLException {
+		Integer key = Integer.valueOf(rows);
+		PreparedStatement ps = this.statements.get(key);
+		if (ps == null) {
+			String sql = this.rewriter.getSQL(rows);
+			if (log.isDebugEnabled()) {
+				log.debug("rewrote batched insert for " + rows + " rows: " + sql);
+			}
+			ps = this.delegate.getConnection().prepareStatement(sql);
+			ps.setQueryTimeout(this.delegate.getQueryTimeout());
+			this.statements.put(key, ps);
+		}
+		return ps;
+	}
+
+	private static void bind(Binding[] row, PreparedStatement ps, int offset) throws SQLException {
+		for (int i = 0; i < row.length; i++) {
+			row[i].apply(ps, offset);
+		}
+	}
+
+	/**
+	 * Close the multi row statements. The delegate is left to the caller.
+	 */
+	void closeRewrittenStatements() {
+		Iterator<PreparedStatement> iter = this.statements.values().iterator();
+		while (iter.hasNext()) {
+			try {
+				iter.next().close();
+			} catch (SQLException e) {
+				log.warn("Could not close a multi row insert statement", e);
+			}
+		}
+		this.statements.clear();
+		this.rows.clear();
+		this.currentRow.clear();
+	}
+
+	/**
+	 * One recorded <tt>setXxx(index, ...)</tt> call.
+	 */
+	private static final class Binding {
+		private final Method method;
+		private final Object[] args;
+
+		Binding(Method method, Object[] args) {
+			this.method = method;
+			this.args = args.clone();
+		}
+
+		void apply(PreparedStatement ps, int offset) throws SQLException {
+			Object[] shifted = this.args.clone();
+			shifted[0] = Integer.valueOf(((Integer) this.args[0]).intValue() + offset);
+			try {
+				this.method.invoke(ps, shifted);
+			} catch (InvocationTargetException e) {
+				Throwable cause = e.getTargetException();
+				if (cause instanceof SQLException) {
+					throw (SQLException) cause;
+				}
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw new SQLException("could not bind parameter", cause);
+			} catch (IllegalAccessException e) {
+				throw new SQLException("could not bind parameter", e);
+			}
+		}
+	}
+}
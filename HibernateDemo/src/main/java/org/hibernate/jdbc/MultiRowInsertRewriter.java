@@ -0,0 +1,128 @@
+package org.hibernate.jdbc;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.H2Dialect;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.dialect.Oracle8iDialect;
+import org.hibernate.dialect.PostgreSQLDialect;
+
+/**
+ * Turns a single row <tt>insert into T (a, b) values (?, ?)</tt> into the
+ * dialect's multi row form: one <tt>VALUES</tt> list per row for H2,
+ * PostgreSQL and MySQL, <tt>INSERT ALL</tt> for Oracle.
+ */
+public class MultiRowInsertRewriter {
+	private static final Pattern SINGLE_ROW_INSERT = Pattern.compile(
+			"^\\s*(/\\*.*?\\*/\\s*)?insert\\s+into\\s+([^\\s(]+)\\s*\\(([^)]*)\\)\\s*values\\s*(\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\))\\s*$",
+			Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+	private final String comment;
+	private final String table;
+	private final String columns;
+	private final String valuesGroup;
+	private final int parametersPerRow;
+	private final boolean insertAll;
+	private final int maxRows;
+
+	private MultiRowInsertRewriter(Matcher matcher, boolean insertAll, int maxParameters, int maxRows) {
+		this.comment = matcher.group(1) == null ? "" : matcher.group(1);
+		this.table = matcher.group(2);
+		this.columns = matcher.group(3).trim();
+		this.valuesGroup = matcher.group(4);
+		int parameters = 0;
+		for (int i = 0; i < this.valuesGroup.length(); i++) {
+			if (this.valuesGroup.charAt(i) == '?') {
+				parameters++;
+			}
+		}
+		this.parametersPerRow = parameters;
+		this.insertAll = insertAll;
+		this.maxRows = Math.max(1, Math.min(maxRows, maxParameters / parameters));
+	}
+
+	/**
+	 * Return a rewriter for the given SQL, or <tt>null</tt> if the SQL is not
+	 * a plain single row insert or the dialect has no multi row form.
+	 */
+	public static MultiRowInsertRewriter forSQL(String sql, Dialect dialect, int maxRows) {
+		int maxParameters = getMaxParameters(dialect);
+		if (maxParameters <= 0) {
+			return null;
+		}
+		Matcher matcher = SINGLE_ROW_INSERT.matcher(sql);
+		if (!matcher.matches()) {
+			return null;
+		}
+		boolean insertAll = isOracle(dialect);
+		return new MultiRowInsertRewriter(matcher, insertAll, maxParameters, maxRows);
+	}
+
+	/**
+	 * True for the Oracle 8i dialect and its 9i and 10g subclasses, and for
+	 * the deprecated Oracle9Dialect and OracleDialect, which are matched by
+	 * name so that using them does not need a deprecated reference.
+	 */
+	private static boolean isOracle(Dialect dialect) {
+		if (dialect instanceof Oracle8iDialect) {
+			return true;
+		}
+		for (Class type = dialect.getClass(); type != null; type = type.getSuperclass()) {
+			if ("org.hibernate.dialect.Oracle9Dialect".equals(type.getName())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Bind parameter limit of the dialect, or <tt>0</tt> if multi row
+	 * inserts are not supported.
+	 */
+	private static int getMaxParameters(Dialect dialect) {
+		if (isOracle(dialect)) {
+			return 65535;
+		}
+		if (dialect instanceof MySQLDialect) {
+			return 65535;
+		}
+		if ((dialect instanceof PostgreSQLDialect) || (dialect instanceof H2Dialect)) {
+			return 32767;
+		}
+		return 0;
+	}
+
+	public int getParametersPerRow() {
+		return this.parametersPerRow;
+	}
+
+	/**
+	 * The largest number of rows a single statement may carry.
+	 */
+	public int getMaxRows() {
+		return this.maxRows;
+	}
+
+	public String getSQL(int rows) {
+		StringBuffer buf = new StringBuffer(this.comment);
+		if (this.insertAll) {
+			buf.append("insert all");
+			for (int i = 0; i < rows; i++) {
+				buf.append(" into ").append(this.table).append(" (").append(this.columns).append(") values ")
+						.append(this.valuesGroup);
+			}
+			buf.append(" select 1 from dual");
+		} else {
+			buf.append("insert into ").append(this.table).append(" (").append(this.columns).append(") values ");
+			for (int i = 0; i < rows; i++) {
+				if (i > 0) {
+					buf.append(", ");
+				}
+				buf.append(this.valuesGroup);
+			}
+		}
+		return buf.toString();
+	}
+}
@@ -0,0 +1,206 @@
+package org.hibernate.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded LRU cache of open prepared statements for a single JDBC connection.
+ * A statement is removed from the cache while it is in use and handed back on
+ * close, so the same instance is never given out twice at the same time, and
+ * reset to the state it was prepared in: no parameters, batch, warnings,
+ * timeout or row limit and its original fetch size.
+ */
+class PreparedStatementCache {
+	private static final Logger log = LoggerFactory.getLogger(PreparedStatementCache.class);
+
+	private final int maxSize;
+	private final LinkedHashMap<Key, PreparedStatement> statements;
+	private final IdentityHashMap<PreparedStatement, Key> inUse = new IdentityHashMap<PreparedStatement, Key>();
+	private final IdentityHashMap<PreparedStatement, Integer> preparedFetchSizes = new IdentityHashMap<PreparedStatement, Integer>();
+	private Connection connection;
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+
+	PreparedStatementCache(int maxSize) {
+		this.maxSize = maxSize;
+		this.statements = new LinkedHashMap<Key, PreparedStatement>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Key, PreparedStatement> eldest) {
+				if (size() > PreparedStatementCache.this.maxSize) {
+					evictionCount++;
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Take a statement for the given key out of the cache, or return
+	 * <tt>null</tt> if the caller has to prepare a new one.
+	 */
+	PreparedStatement checkout(Connection conn, Key key) {
+		if (conn != this.connection) {
+			clear();
+			this.connection = conn;
+		}
+		PreparedStatement ps = this.statements.remove(key);
+		if (ps == null) {
+			missCount++;
+		} else {
+			hitCount++;
+			this.inUse.put(ps, key);
+		}
+		return ps;
+	}
+
+	/**
+	 * Remember a freshly prepared statement so that it can be handed back
+	 * on close.
+	 */
+	void register(Key key, PreparedStatement ps) {
+		try {
+			this.preparedFetchSizes.put(ps, Integer.valueOf(ps.getFetchSize()));
+		} catch (SQLException e) {
+			log.debug("could not read the fetch size of a prepared statement, it will not be cached", e);
+			return;
+		}
+		this.inUse.put(ps, key);
+	}
+
+	/**
+	 * Hand a statement back to the cache. Returns <tt>false</tt> if the
+	 * statement is not (or no longer) known to the cache and must be closed
+	 * by the caller.
+	 */
+	boolean checkin(PreparedStatement ps) {
+		Key key = this.inUse.remove(ps);
+		if (key == null) {
+			return false;
+		}
+		try {
+			ps.clearParameters();
+			ps.clearBatch();
+			ps.clearWarnings();
+			if (ps.getQueryTimeout() != 0) {
+				ps.setQueryTimeout(0);
+			}
+			if (ps.getMaxRows() != 0) {
+				ps.setMaxRows(0);
+			}
+			int fetchSize = this.preparedFetchSizes.get(ps).intValue();
+			if (ps.getFetchSize() != fetchSize) {
+				ps.setFetchSize(fetchSize);
+			}
+		} catch (SQLException e) {
+			this.preparedFetchSizes.remove(ps);
+			log.debug("could not reset prepared statement, it will not be cached", e);
+			return false;
+		}
+		PreparedStatement previous = this.statements.put(key, ps);
+		if (previous != null && previous != ps) {
+			evictionCount++;
+			closeQuietly(previous);
+		}
+		return true;
+	}
+
+	/**
+	 * Close every cached statement, for example because the connection is
+	 * about to be released. Statements currently in use are forgotten and
+	 * will be closed normally when they are handed back.
+	 */
+	void clear() {
+		Iterator<PreparedStatement> iter = this.statements.values().iterator();
+		while (iter.hasNext()) {
+			closeQuietly(iter.next());
+		}
+		this.statements.clear();
+		this.inUse.clear();
+		this.preparedFetchSizes.clear();
+		this.connection = null;
+	}
+
+	int size() {
+		return this.statements.size();
+	}
+
+	long getHitCount() {
+		return hitCount;
+	}
+
+	long getMissCount() {
+		return missCount;
+	}
+
+	long getEvictionCount() {
+		return evictionCount;
+	}
+
+	private void closeQuietly(PreparedStatement ps) {
+		this.preparedFetchSizes.remove(ps);
+		try {
+			ps.close();
+		} catch (SQLException e) {
+			log.warn("Could not close a cached JDBC prepared statement", e);
+		}
+	}
+
+	/**
+	 * Everything that influences how a statement was prepared.
+	 */
+	static final class Key {
+		private final String sql;
+		private final int resultSetType;
+		private final boolean useGetGeneratedKeys;
+		private final String[] namedGeneratedKeys;
+		private final boolean callable;
+		private final int hashCode;
+
+		Key(String sql, int resultSetType, boolean useGetGeneratedKeys, String[] namedGeneratedKeys,
+				boolean callable) {
+			this.sql = sql;
+			this.resultSetType = resultSetType;
+			this.useGetGeneratedKeys = useGetGeneratedKeys;
+			this.namedGeneratedKeys = namedGeneratedKeys;
+			this.callable = callable;
+			int result = sql.hashCode();
+			result = 31 * result + resultSetType;
+			result = 31 * result + (useGetGeneratedKeys ? 1 : 0);
+			result = 31 * result + Arrays.hashCode(namedGeneratedKeys);
+			result = 31 * result + (callable ? 1 : 0);
+			this.hashCode = result;
+		}
+
+		public boolean equals(Object other) {
+			if (this == other) {
+				return true;
+			}
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			Key that = (Key) other;
+			return this.hashCode == that.hashCode && this.resultSetType == that.resultSetType
+					&& this.useGetGeneratedKeys == that.useGetGeneratedKeys && this.callable == that.callable
+					&& this.sql.equals(that.sql) && Arrays.equals(this.namedGeneratedKeys, that.namedGeneratedKeys);
+		}
+
+		public int hashCode() {
+			return hashCode;
+		}
+
+		public String toString() {
+			return sql;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package org.hibernate.jdbc;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.persister.collection.CollectionPersister;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.AbstractComponentType;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+
+/**
+ * Which tables of a session factory may be joined by a foreign key, built
+ * from the associations of its entity and collection persisters. Tables of
+ * the same entity or collection, of an entity and the entities it
+ * associates, and of a collection, its owner and its elements are related,
+ * in both directions since rows may be inserted or deleted. Used to decide
+ * whether the rows of two open batches can be executed in either order.
+ */
+final class TableDependencies {
+	private static final Map<SessionFactory, TableDependencies> INSTANCES = new WeakHashMap<SessionFactory, TableDependencies>();
+
+	private static final Pattern WRITTEN_TABLE = Pattern.compile(
+			"^\\s*(?:/\\*.*?\\*/\\s*)?(?:insert\\s+into|update|delete\\s+from|delete)\\s+([^\\s(]+)",
+			Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+	private final Map<String, Set<String>> related = new HashMap<String, Set<String>>();
+
+	private TableDependencies(SessionFactoryImplementor factory) {
+		for (Iterator iter = factory.getAllClassMetadata().keySet().iterator(); iter.hasNext();) {
+			EntityPersister persister = factory.getEntityPersister((String) iter.next());
+			Serializable[] tables = persister.getQuerySpaces();
+			relate(tables, tables);
+			Type[] types = persister.getPropertyTypes();
+			for (int i = 0; i < types.length; i++) {
+				relateAssociated(factory, tables, types[i]);
+			}
+		}
+		for (Iterator iter = factory.getAllCollectionMetadata().keySet().iterator(); iter.hasNext();) {
+			CollectionPersister persister = factory.getCollectionPersister((String) iter.next());
+			Serializable[] tables = persister.getCollectionSpaces();
+			relate(tables, tables);
+			relate(tables, persister.getOwnerEntityPersister().getQuerySpaces());
+			relateAssociated(factory, tables, persister.getElementType());
+			if (persister.hasIndex()) {
+				relateAssociated(factory, tables, persister.getIndexType());
+			}
+		}
+	}
+
+	static TableDependencies forFactory(SessionFactoryImplementor factory) {
+		synchronized (INSTANCES) {
+			TableDependencies dependencies = INSTANCES.get(factory);
+			if (dependencies == null) {
+				dependencies = new TableDependencies(factory);
+				INSTANCES.put(factory, dependencies);
+			}
+			return dependencies;
+		}
+	}
+
+	/**
+	 * Whether the rows written by two statements may have to be written in
+	 * the order they were added. True if either statement writes a table
+	 * that cannot be told from its SQL.
+	 */
+	boolean isRelated(String sql, String otherSQL) {
+		String table = getWrittenTable(sql);
+		String otherTable = getWrittenTable(otherSQL);
+		if ((table == null) || (otherTable == null) || table.equals(otherTable)) {
+			return true;
+		}
+		Set<String> tables = this.related.get(table);
+		return (tables != null) && tables.contains(otherTable);
+	}
+
+	private static String getWrittenTable(String sql) {
+		Matcher matcher = WRITTEN_TABLE.matcher(sql);
+		return matcher.find() ? matcher.group(1).toLowerCase() : null;
+	}
+
+	private void relateAssociated(SessionFactoryImplementor factory, Serializable[] tables, Type type) {
+		if (type.isEntityType()) {
+			String entityName = ((EntityType) type).getAssociatedEntityName(factory);
+			relate(tables, factory.getEntityPersister(entityName).getQuerySpaces());
+		} else if (type.isComponentType()) {
+			Type[] subtypes = ((AbstractComponentType) type).getSubtypes();
+			for (int i = 0; i < subtypes.length; i++) {
+				relateAssociated(factory, tables, subtypes[i]);
+			}
+		}
+	}
+
+	private void relate(Serializable[] tables, Serializable[] otherTables) {
+		for (int i = 0; i < tables.length; i++) {
+			for (int j = 0; j < otherTables.length; j++) {
+				relate(tables[i].toString().toLowerCase(), otherTables[j].toString().toLowerCase());
+				relate(otherTables[j].toString().toLowerCase(), tables[i].toString().toLowerCase());
+			}
+		}
+	}
+
+	private void relate(String table, String otherTable) {
+		Set<String> tables = this.related.get(table);
+		if (tables == null) {
+			tables = new HashSet<String>();
+			this.related.put(table, tables);
+		}
+		tables.add(otherTable);
+	}
+}
@@ -0,0 +1,141 @@
+package org.hibernate.jmx;
+
+import java.lang.management.ManagementFactory;
+import java.util.Hashtable;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.naming.NamingException;
+import javax.naming.RefAddr;
+
+import org.hibernate.HibernateException;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.stat.ExtendedStatistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes the {@link ExtendedStatistics} of a session factory as a
+ * standard MBean.
+ */
+public class ExtendedStatisticsService implements ExtendedStatisticsServiceMBean {
+	private static final Logger log = LoggerFactory.getLogger(ExtendedStatisticsService.class);
+
+	private final ExtendedStatistics statistics;
+
+	public ExtendedStatisticsService(ExtendedStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	/**
+	 * Register the statistics of the given factory with the platform MBean
+	 * server under the given object name, with a <tt>sessionFactory</tt> key
+	 * added that holds the factory's name, or its UUID if it has none.
+	 */
+	public static void register(ExtendedStatistics statistics, String objectName, SessionFactory factory) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName base = new ObjectName(objectName);
+			Hashtable<String, String> properties = new Hashtable<String, String>(base.getKeyPropertyList());
+			properties.put("sessionFactory", ObjectName.quote(getFactoryId(factory)));
+			ObjectName name = new ObjectName(base.getDomain(), properties);
+			if (server.isRegistered(name)) {
+				log.warn("replacing extended statistics MBean " + name + " of another session factory of that name");
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(new ExtendedStatisticsService(statistics), name);
+		} catch (JMException e) {
+			throw new HibernateException("Could not register extended statistics MBean " + objectName, e);
+		}
+	}
+
+	private static String getFactoryId(SessionFactory factory) {
+		String name = ((SessionFactoryImplementor) factory).getSettings().getSessionFactoryName();
+		if (name != null) {
+			return name;
+		}
+		try {
+			RefAddr uuid = factory.getReference().get("uuid");
+			if (uuid != null) {
+				return (String) uuid.getContent();
+			}
+		} catch (NamingException e) {
+			log.debug("could not get the session factory UUID", e);
+		}
+		return Integer.toHexString(System.identityHashCode(factory));
+	}
+
+	public String[] getBatchSQLs() {
+		return statistics.getBatchSQLs();
+	}
+
+	public int getBatchSize(String sql) {
+		return statistics.getBatchSize(sql);
+	}
+
+	public int[] getBatchSizeHistory(String sql) {
+		return statistics.getBatchSizeHistory(sql);
+	}
+
+	public long getPreparedStatementOpenCount() {
+		return statistics.getPreparedStatementOpenCount();
+	}
+
+	public long getPreparedStatementCloseCount() {
+		return statistics.getPreparedStatementCloseCount();
+	}
+
+	public long getResultSetOpenCount() {
+		return statistics.getResultSetOpenCount();
+	}
+
+	public long getResultSetCloseCount() {
+		return statistics.getResultSetCloseCount();
+	}
+
+	public long getBatchExecutionCount() {
+		return statistics.getBatchExecutionCount();
+	}
+
+	public long getBatchRowCount() {
+		return statistics.getBatchRowCount();
+	}
+
+	public long[] getRowsPerBatchHistogram() {
+		return statistics.getRowsPerBatchHistogram();
+	}
+
+	public String[] getExecutedSQLs() {
+		return statistics.getExecutedSQLs();
+	}
+
+	public long[] getPrepareTimeHistogram(String sql) {
+		return statistics.getPrepareTimeHistogram(sql);
+	}
+
+	public long[] getExecuteTimeHistogram(String sql) {
+		return statistics.getExecuteTimeHistogram(sql);
+	}
+
+	public long getAutoFlushRequiredCount() {
+		return statistics.getAutoFlushRequiredCount();
+	}
+
+	public long getAutoFlushAvoidedCount() {
+		return statistics.getAutoFlushAvoidedCount();
+	}
+
+	public long getCoalescedStatementCount() {
+		return statistics.getCoalescedStatementCount();
+	}
+
+	public String[] getFlushPhases() {
+		return statistics.getFlushPhases();
+	}
+
+	public long[] getFlushPhaseHistogram(String phase) {
+		return statistics.getFlushPhaseHistogram(phase);
+	}
+}
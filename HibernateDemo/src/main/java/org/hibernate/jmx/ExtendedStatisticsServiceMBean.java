@@ -0,0 +1,9 @@
+package org.hibernate.jmx;
+
+import org.hibernate.stat.ExtendedStatistics;
+
+/**
+ * JMX view of {@link ExtendedStatistics}.
+ */
+public interface ExtendedStatisticsServiceMBean extends ExtendedStatistics {
+}
@@ -0,0 +1,84 @@
+package org.hibernate.persister.entity;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hibernate.HibernateException;
+import org.hibernate.cache.access.EntityRegionAccessStrategy;
+import org.hibernate.engine.Mapping;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.Versioning;
+import org.hibernate.mapping.PersistentClass;
+
+/**
+ * A single table persister that caches the UPDATE statements of
+ * <tt>dynamic-update</tt> entities by the set of properties they write, so
+ * that updating the same columns again reuses the SQL string, and with it
+ * the JDBC batch and the driver's statement cache. Statements that depend
+ * on the old property values, for <tt>optimistic-lock="all"</tt> or
+ * <tt>"dirty"</tt>, are generated every time.
+ */
+public class DynamicUpdateEntityPersister extends SingleTableEntityPersister {
+	private static final int MAX_CACHED_UPDATES = 512;
+
+	private final ConcurrentHashMap<UpdateKey, String> updateStrings = new ConcurrentHashMap<UpdateKey, String>();
+	private final boolean oldFieldsInWhere;
+
+	public DynamicUpdateEntityPersister(PersistentClass persistentClass, EntityRegionAccessStrategy cacheAccessStrategy,
+			SessionFactoryImplementor factory, Mapping mapping) throws HibernateException {
+		super(persistentClass, cacheAccessStrategy, factory, mapping);
+		this.oldFieldsInWhere = getEntityMetamodel().getOptimisticLockMode() > Versioning.OPTIMISTIC_LOCK_VERSION;
+	}
+
+	protected String generateUpdateString(boolean[] includeProperty, int j, Object[] oldFields, boolean useRowId) {
+		// the superclass constructor generates the full update strings before
+		// this persister's fields are assigned
+		if ((this.updateStrings == null) || (this.oldFieldsInWhere && (oldFields != null))) {
+			return super.generateUpdateString(includeProperty, j, oldFields, useRowId);
+		}
+		UpdateKey key = new UpdateKey(includeProperty, j, useRowId);
+		String sql = this.updateStrings.get(key);
+		if (sql == null) {
+			sql = super.generateUpdateString(includeProperty, j, oldFields, useRowId);
+			if (this.updateStrings.size() < MAX_CACHED_UPDATES) {
+				this.updateStrings.putIfAbsent(key, sql);
+			}
+		}
+		return sql;
+	}
+
+	/**
+	 * The updated properties as a bitmask, with the table and row id flag.
+	 */
+	private static final class UpdateKey {
+		private final long[] properties;
+		private final int table;
+		private final boolean useRowId;
+		private final int hashCode;
+
+		UpdateKey(boolean[] includeProperty, int table, boolean useRowId) {
+			this.properties = new long[(includeProperty.length + 63) >>> 6];
+			for (int i = 0; i < includeProperty.length; i++) {
+				if (includeProperty[i]) {
+					this.properties[i >>> 6] |= 1L << i;
+				}
+			}
+			this.table = table;
+			this.useRowId = useRowId;
+			this.hashCode = (Arrays.hashCode(this.properties) * 31 + table) * 2 + (useRowId ? 1 : 0);
+		}
+
+		public boolean equals(Object other) {
+			if (!(other instanceof UpdateKey)) {
+				return false;
+			}
+			UpdateKey key = (UpdateKey) other;
+			return (this.table == key.table) && (this.useRowId == key.useRowId)
+					&& Arrays.equals(this.properties, key.properties);
+		}
+
+		public int hashCode() {
+			return this.hashCode;
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package org.hibernate.persister.entity;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.hibernate.HibernateException;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.exception.JDBCExceptionHelper;
+import org.hibernate.id.IdentifierGeneratorFactory;
+import org.hibernate.jdbc.AbstractBatcher;
+import org.hibernate.jdbc.Batcher;
+import org.hibernate.pretty.MessageHelper;
+import org.hibernate.stat.ExtendedStatisticsImpl;
+import org.hibernate.stat.FlushProfile;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes the inserts of several entities with database generated
+ * identifiers as one JDBC batch, reading the identifiers back through
+ * <tt>getGeneratedKeys()</tt>. The driver must return one key per batched
+ * row, in order: the batch runs behind a savepoint and, if the number of
+ * keys does not match, is rolled back and inserted row by row, as are the
+ * later inserts of the same SQL.
+ */
+public final class IdentityInsertBatch {
+	private static final Logger log = LoggerFactory.getLogger(IdentityInsertBatch.class);
+
+	private static final Map<SessionFactory, Set<String>> UNBATCHABLE_SQL = new WeakHashMap<SessionFactory, Set<String>>();
+
+	private IdentityInsertBatch() {
+	}
+
+	/**
+	 * Can inserts of this persister be batched? It must be a single table
+	 * entity with an identity column, static insert SQL and a session factory
+	 * that uses <tt>getGeneratedKeys()</tt>. Its properties must have no
+	 * components or formulas, so that each property inserts all of its
+	 * columns or none.
+	 */
+	public static boolean isBatchable(EntityPersister persister, SessionImplementor session) {
+		if (!(persister instanceof AbstractEntityPersister)) {
+			return false;
+		}
+		AbstractEntityPersister aep = (AbstractEntityPersister) persister;
+		return aep.isIdentifierAssignedByInsert() && (aep.getTableSpan() == 1) && (!aep.useDynamicInsert())
+				&& session.getFactory().getSettings().isGetGeneratedKeysEnabled() && hasWholePropertyColumns(aep);
+	}
+
+	private static boolean hasWholePropertyColumns(AbstractEntityPersister persister) {
+		Type[] types = persister.getPropertyTypes();
+		for (int i = 0; i < types.length; i++) {
+			if (types[i].isComponentType()) {
+				return false;
+			}
+			String[] columns = persister.getPropertyColumnNames(i);
+			for (int j = 0; j < columns.length; j++) {
+				if (columns[j] == null) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Insert the given entity states of the given entities and return the
+	 * generated identifiers in the same order.
+	 */
+	public static Serializable[] insert(EntityPersister persister, Object[][] states, Object[] entities,
+			SessionImplementor session) throws HibernateException {
+		AbstractEntityPersister aep = (AbstractEntityPersister) persister;
+		String sql = aep.getSQLIdentityInsertString();
+		Serializable[] ids = isUnbatchable(session, sql) ? null : insertBatch(aep, sql, states, session);
+		if (ids == null) {
+			ids = new Serializable[states.length];
+			for (int i = 0; i < states.length; i++) {
+				ids[i] = aep.insert(states[i], entities[i], session);
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * Insert the given states as one batch and return the generated
+	 * identifiers, or <tt>null</tt> if the rows could not be inserted as a
+	 * batch and nothing was inserted.
+	 */
+	private static Serializable[] insertBatch(AbstractEntityPersister aep, String sql, Object[][] states,
+			SessionImplementor session) throws HibernateException {
+		boolean[] notNull = aep.getPropertyInsertability();
+		boolean[][] includeColumns = getPropertyColumnInsertability(aep, notNull);
+		Serializable[] ids = new Serializable[states.length];
+		if (log.isDebugEnabled()) {
+			log.debug("Inserting " + states.length + " " + aep.getEntityName() + " entities (native id) in one batch");
+		}
+		Batcher batcher = session.getBatcher();
+		try {
+			PreparedStatement ps = batcher.prepareStatement(sql, true);
+			try {
+				Connection connection = ps.getConnection();
+				if (connection.getAutoCommit() || !connection.getMetaData().supportsSavepoints()) {
+					// a batch with too few keys could not be undone
+					setUnbatchable(session, sql);
+					return null;
+				}
+				Savepoint savepoint = connection.setSavepoint();
+				for (int i = 0; i < states.length; i++) {
+					aep.dehydrate(null, states[i], notNull, includeColumns, 0, ps, session);
+					ps.addBatch();
+				}
+				long start = System.nanoTime();
+				int[] rowCounts = ps.executeBatch();
+				long elapsed = System.nanoTime() - start;
+				for (int i = 0; i < rowCounts.length; i++) {
+					if ((rowCounts[i] != 1) && (rowCounts[i] != Statement.SUCCESS_NO_INFO)) {
+						throw new HibernateException("unexpected row count " + rowCounts[i] + " for batched insert "
+								+ i + " of " + MessageHelper.infoString(aep));
+					}
+				}
+				int keys = 0;
+				ResultSet rs = ps.getGeneratedKeys();
+				try {
+					while (rs.next()) {
+						if (keys < ids.length) {
+							ids[keys] = IdentifierGeneratorFactory.get(rs, aep.getIdentifierType());
+						}
+						keys++;
+					}
+				} finally {
+					rs.close();
+				}
+				if (keys != ids.length) {
+					log.warn("the database returned " + keys + " generated identifiers for " + ids.length
+							+ " batched inserts of " + MessageHelper.infoString(aep) + ", inserting them row by row");
+					connection.rollback(savepoint);
+					setUnbatchable(session, sql);
+					return null;
+				}
+				releaseSavepoint(connection, savepoint);
+				ExtendedStatisticsImpl.forFactory(session.getFactory()).batchExecuted(sql, states.length, elapsed);
+				FlushProfile profile = batcher instanceof AbstractBatcher ? ((AbstractBatcher) batcher)
+						.getFlushProfile() : null;
+				if (profile != null) {
+					profile.batchExecuted(sql, states.length, elapsed);
+				}
+			} finally {
+				batcher.closeStatement(ps);
+			}
+		} catch (SQLException sqle) {
+			throw JDBCExceptionHelper.convert(session.getFactory().getSQLExceptionConverter(), sqle,
+					"could not insert: " + MessageHelper.infoString(aep), sql);
+		}
+		return ids;
+	}
+
+	private static boolean isUnbatchable(SessionImplementor session, String sql) {
+		synchronized (UNBATCHABLE_SQL) {
+			Set<String> unbatchable = UNBATCHABLE_SQL.get(session.getFactory());
+			return (unbatchable != null) && unbatchable.contains(sql);
+		}
+	}
+
+	private static void setUnbatchable(SessionImplementor session, String sql) {
+		synchronized (UNBATCHABLE_SQL) {
+			Set<String> unbatchable = UNBATCHABLE_SQL.get(session.getFactory());
+			if (unbatchable == null) {
+				unbatchable = new HashSet<String>();
+				UNBATCHABLE_SQL.put(session.getFactory(), unbatchable);
+			}
+			unbatchable.add(sql);
+		}
+	}
+
+	private static void releaseSavepoint(Connection connection, Savepoint savepoint) {
+		try {
+			connection.releaseSavepoint(savepoint);
+		} catch (SQLException e) {
+			// some drivers, Oracle's among them, release savepoints only at commit
+			log.debug("could not release savepoint", e);
+		}
+	}
+
+	/**
+	 * The insertability of each column, that of its property as checked by
+	 * {@link #isBatchable(EntityPersister, SessionImplementor)}.
+	 */
+	private static boolean[][] getPropertyColumnInsertability(AbstractEntityPersister persister,
+			boolean[] propertyInsertability) {
+		boolean[][] columns = new boolean[propertyInsertability.length][];
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = new boolean[persister.getPropertyColumnSpan(i)];
+			Arrays.fill(columns[i], propertyInsertability[i]);
+		}
+		return columns;
+	}
+}
@@ -0,0 +1,28 @@
+package org.hibernate.stat;
+
+import org.hibernate.engine.SessionImplementor;
+
+/**
+ * Session statistics that also expose the {@link FlushProfile} of the
+ * session.
+ */
+public class ExtendedSessionStatistics extends SessionStatisticsImpl {
+	private final FlushProfile flushProfile;
+
+	public ExtendedSessionStatistics(SessionImplementor session, FlushProfile flushProfile) {
+		super(session);
+		this.flushProfile = flushProfile;
+	}
+
+	/**
+	 * The flush profile, or <tt>null</tt> if flush profiling is disabled.
+	 */
+	public FlushProfile getFlushProfile() {
+		return this.flushProfile;
+	}
+
+	public String toString() {
+		String statistics = super.toString();
+		return this.flushProfile == null ? statistics : statistics + this.flushProfile;
+	}
+}
@@ -0,0 +1,95 @@
+package org.hibernate.stat;
+
+/**
+ * Runtime figures that are not covered by {@link Statistics}.
+ */
+public interface ExtendedStatistics {
+	/**
+	 * The SQL strings for which an adaptive batch size is being tracked.
+	 */
+	public String[] getBatchSQLs();
+
+	/**
+	 * The batch size currently used for the given SQL, or <tt>0</tt> if the
+	 * SQL has not been batched with adaptive sizing.
+	 */
+	public int getBatchSize(String sql);
+
+	/**
+	 * The batch sizes recently used for the given SQL, oldest first.
+	 */
+	public int[] getBatchSizeHistory(String sql);
+
+	/**
+	 * Prepared statements opened since start up, across all sessions.
+	 */
+	public long getPreparedStatementOpenCount();
+
+	public long getPreparedStatementCloseCount();
+
+	public long getResultSetOpenCount();
+
+	public long getResultSetCloseCount();
+
+	/**
+	 * Number of JDBC batches executed.
+	 */
+	public long getBatchExecutionCount();
+
+	/**
+	 * Number of rows sent in JDBC batches.
+	 */
+	public long getBatchRowCount();
+
+	/**
+	 * Distribution of rows per executed batch, see {@link LogHistogram}.
+	 */
+	public long[] getRowsPerBatchHistogram();
+
+	/**
+	 * The SQL strings for which prepare or execute times were recorded.
+	 */
+	public String[] getExecutedSQLs();
+
+	/**
+	 * Distribution, in microseconds, of the time taken to prepare the given
+	 * SQL, see {@link LogHistogram}.
+	 */
+	public long[] getPrepareTimeHistogram(String sql);
+
+	/**
+	 * Distribution, in microseconds, of the time taken to execute the given
+	 * SQL as a query or a batch, see {@link LogHistogram}.
+	 */
+	public long[] getExecuteTimeHistogram(String sql);
+
+	/**
+	 * Number of queries that had to flush the session first because changes
+	 * to the tables they read were queued.
+	 */
+	public long getAutoFlushRequiredCount();
+
+	/**
+	 * Number of queries in a transaction that ran without flushing the
+	 * session.
+	 */
+	public long getAutoFlushAvoidedCount();
+
+	/**
+	 * Number of inserts, updates and deletes that were not executed because
+	 * they were merged with another action on the same entity in a flush.
+	 */
+	public long getCoalescedStatementCount();
+
+	/**
+	 * Names of the flush phases timed when flush profiling is enabled, see
+	 * {@link FlushProfile}.
+	 */
+	public String[] getFlushPhases();
+
+	/**
+	 * Distribution, in microseconds, of the time flushes spent in the given
+	 * phase, see {@link LogHistogram}.
+	 */
+	public long[] getFlushPhaseHistogram(String phase);
+}
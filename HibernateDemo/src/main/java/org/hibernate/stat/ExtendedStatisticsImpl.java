@@ -0,0 +1,233 @@
+package org.hibernate.stat;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.ExtendedEnvironment;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.jdbc.AdaptiveBatchSizeController;
+import org.hibernate.jmx.ExtendedStatisticsService;
+
+/**
+ * Holds the {@link ExtendedStatistics} of one session factory.
+ */
+public class ExtendedStatisticsImpl implements ExtendedStatistics {
+	private static final Map<SessionFactory, ExtendedStatisticsImpl> INSTANCES = new WeakHashMap<SessionFactory, ExtendedStatisticsImpl>();
+
+	private final AdaptiveBatchSizeController batchSizeController;
+	private final LongAdder preparedStatementOpenCount = new LongAdder();
+	private final LongAdder preparedStatementCloseCount = new LongAdder();
+	private final LongAdder resultSetOpenCount = new LongAdder();
+	private final LongAdder resultSetCloseCount = new LongAdder();
+	private final LongAdder batchExecutionCount = new LongAdder();
+	private final LongAdder batchRowCount = new LongAdder();
+	private final LogHistogram rowsPerBatch = new LogHistogram();
+	private final LongAdder autoFlushRequiredCount = new LongAdder();
+	private final LongAdder autoFlushAvoidedCount = new LongAdder();
+	private final LongAdder coalescedStatementCount = new LongAdder();
+	private final LogHistogram[] flushPhaseTimes = new LogHistogram[FlushProfile.getPhaseCount()];
+	private final ConcurrentHashMap<String, LogHistogram> prepareTimes = new ConcurrentHashMap<String, LogHistogram>();
+	private final ConcurrentHashMap<String, LogHistogram> executeTimes = new ConcurrentHashMap<String, LogHistogram>();
+
+	private ExtendedStatisticsImpl(SessionFactoryImplementor factory) {
+		if (ExtendedEnvironment.getBoolean(factory, ExtendedEnvironment.ADAPTIVE_BATCH_SIZE, false)) {
+			int batchSize = factory.getSettings().getJdbcBatchSize();
+			this.batchSizeController = new AdaptiveBatchSizeController(batchSize,
+					ExtendedEnvironment.getInt(factory, ExtendedEnvironment.ADAPTIVE_BATCH_SIZE_MIN, 1),
+					ExtendedEnvironment.getInt(factory, ExtendedEnvironment.ADAPTIVE_BATCH_SIZE_MAX, batchSize * 8),
+					ExtendedEnvironment.getInt(factory, ExtendedEnvironment.ADAPTIVE_BATCH_MAX_LATENCY, 0));
+		} else {
+			this.batchSizeController = null;
+		}
+		for (int i = 0; i < this.flushPhaseTimes.length; i++) {
+			this.flushPhaseTimes[i] = new LogHistogram();
+		}
+	}
+
+	public static ExtendedStatisticsImpl forFactory(SessionFactory factory) {
+		synchronized (INSTANCES) {
+			ExtendedStatisticsImpl statistics = INSTANCES.get(factory);
+			if (statistics == null) {
+				statistics = new ExtendedStatisticsImpl((SessionFactoryImplementor) factory);
+				INSTANCES.put(factory, statistics);
+				String objectName = ExtendedEnvironment.getString((SessionFactoryImplementor) factory,
+						ExtendedEnvironment.STATISTICS_OBJECT_NAME, null);
+				if (objectName != null) {
+					ExtendedStatisticsService.register(statistics, objectName, factory);
+				}
+			}
+			return statistics;
+		}
+	}
+
+	/**
+	 * The batch size controller, or <tt>null</tt> if adaptive batch sizing
+	 * is disabled.
+	 */
+	public AdaptiveBatchSizeController getBatchSizeController() {
+		return this.batchSizeController;
+	}
+
+	public String[] getBatchSQLs() {
+		return this.batchSizeController == null ? new String[0] : this.batchSizeController.getSQLs();
+	}
+
+	public int getBatchSize(String sql) {
+		AdaptiveBatchSizeController.SqlBatchSize size = findBatchSize(sql);
+		return size == null ? 0 : size.getCurrent();
+	}
+
+	public int[] getBatchSizeHistory(String sql) {
+		AdaptiveBatchSizeController.SqlBatchSize size = findBatchSize(sql);
+		return size == null ? new int[0] : size.getHistory();
+	}
+
+	private AdaptiveBatchSizeController.SqlBatchSize findBatchSize(String sql) {
+		return this.batchSizeController == null ? null : this.batchSizeController.findBatchSize(sql);
+	}
+
+	public void preparedStatementOpened() {
+		this.preparedStatementOpenCount.increment();
+	}
+
+	public void preparedStatementClosed() {
+		this.preparedStatementCloseCount.increment();
+	}
+
+	public void resultSetOpened() {
+		this.resultSetOpenCount.increment();
+	}
+
+	public void resultSetClosed() {
+		this.resultSetCloseCount.increment();
+	}
+
+	public void statementPrepared(String sql, long nanos) {
+		histogram(this.prepareTimes, sql).record(nanos / 1000L);
+	}
+
+	public void statementExecuted(String sql, long nanos) {
+		histogram(this.executeTimes, sql).record(nanos / 1000L);
+	}
+
+	public void batchExecuted(String sql, int rows, long nanos) {
+		this.batchExecutionCount.increment();
+		this.batchRowCount.add(rows);
+		this.rowsPerBatch.record(rows);
+		statementExecuted(sql, nanos);
+	}
+
+	public void autoFlushChecked(boolean flushed) {
+		if (flushed) {
+			this.autoFlushRequiredCount.increment();
+		} else {
+			this.autoFlushAvoidedCount.increment();
+		}
+	}
+
+	public void statementsCoalesced(int statements) {
+		this.coalescedStatementCount.add(statements);
+	}
+
+	/**
+	 * Add the phases of the flush the given profile just ended.
+	 */
+	public void flushProfiled(FlushProfile profile) {
+		for (int i = 0; i < this.flushPhaseTimes.length; i++) {
+			long nanos = profile.getLastFlushTime(i);
+			if ((nanos > 0) || (i == FlushProfile.TOTAL)) {
+				this.flushPhaseTimes[i].record(nanos / 1000L);
+			}
+		}
+	}
+
+	public long getPreparedStatementOpenCount() {
+		return this.preparedStatementOpenCount.sum();
+	}
+
+	public long getPreparedStatementCloseCount() {
+		return this.preparedStatementCloseCount.sum();
+	}
+
+	public long getResultSetOpenCount() {
+		return this.resultSetOpenCount.sum();
+	}
+
+	public long getResultSetCloseCount() {
+		return this.resultSetCloseCount.sum();
+	}
+
+	public long getBatchExecutionCount() {
+		return this.batchExecutionCount.sum();
+	}
+
+	public long getBatchRowCount() {
+		return this.batchRowCount.sum();
+	}
+
+	public long[] getRowsPerBatchHistogram() {
+		return this.rowsPerBatch.getCounts();
+	}
+
+	public String[] getExecutedSQLs() {
+		Set<String> sqls = new HashSet<String>(this.prepareTimes.keySet());
+		sqls.addAll(this.executeTimes.keySet());
+		return sqls.toArray(new String[sqls.size()]);
+	}
+
+	public long[] getPrepareTimeHistogram(String sql) {
+		LogHistogram histogram = this.prepareTimes.get(sql);
+		return histogram == null ? new long[0] : histogram.getCounts();
+	}
+
+	public long[] getExecuteTimeHistogram(String sql) {
+		LogHistogram histogram = this.executeTimes.get(sql);
+		return histogram == null ? new long[0] : histogram.getCounts();
+	}
+
+	public long getAutoFlushRequiredCount() {
+		return this.autoFlushRequiredCount.sum();
+	}
+
+	public long getAutoFlushAvoidedCount() {
+		return this.autoFlushAvoidedCount.sum();
+	}
+
+	public long getCoalescedStatementCount() {
+		return this.coalescedStatementCount.sum();
+	}
+
+	public String[] getFlushPhases() {
+		String[] phases = new String[FlushProfile.getPhaseCount()];
+		for (int i = 0; i < phases.length; i++) {
+			phases[i] = FlushProfile.getPhaseName(i);
+		}
+		return phases;
+	}
+
+	public long[] getFlushPhaseHistogram(String phase) {
+		for (int i = 0; i < this.flushPhaseTimes.length; i++) {
+			if (FlushProfile.getPhaseName(i).equals(phase)) {
+				return this.flushPhaseTimes[i].getCounts();
+			}
+		}
+		return new long[0];
+	}
+
+	private static LogHistogram histogram(ConcurrentHashMap<String, LogHistogram> histograms, String sql) {
+		LogHistogram histogram = histograms.get(sql);
+		if (histogram == null) {
+			LogHistogram created = new LogHistogram();
+			histogram = histograms.putIfAbsent(sql, created);
+			if (histogram == null) {
+				histogram = created;
+			}
+		}
+		return histogram;
+	}
+}
@@ -0,0 +1,230 @@
+package org.hibernate.stat;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Time spent by one session in each phase of its flushes, the actions
+ * executed per queue and the JDBC batches executed per SQL. Phases are
+ * timed back to back: each phase is charged the time since the end of the
+ * previous one, less the batch execution and cache invalidation time
+ * recorded meanwhile on the flushing thread, which have phases of their
+ * own.
+ * <p/>
+ * Query cache invalidation after transaction completion happens outside a
+ * flush and is charged to the last flush.
+ */
+public class FlushProfile {
+	public static final int DIRTY_CHECK = 0;
+	public static final int SORT = 1;
+	public static final int COLLECTION_FLUSH = 2;
+	public static final int PREPARE = 3;
+	public static final int INSERTIONS = 4;
+	public static final int UPDATES = 5;
+	public static final int COLLECTION_REMOVALS = 6;
+	public static final int COLLECTION_UPDATES = 7;
+	public static final int COLLECTION_CREATIONS = 8;
+	public static final int DELETIONS = 9;
+	public static final int BATCH_EXECUTION = 10;
+	public static final int CACHE_INVALIDATION = 11;
+	public static final int TOTAL = 12;
+
+	private static final String[] PHASE_NAMES = { "dirty-check", "sort", "collection-flush", "prepare", "insertions",
+			"updates", "collection-removals", "collection-updates", "collection-creations", "deletions",
+			"batch-execution", "cache-invalidation", "total" };
+
+	private final long[] lastNanos = new long[PHASE_NAMES.length];
+	private final long[] totalNanos = new long[PHASE_NAMES.length];
+	private final long[] lastActions = new long[PHASE_NAMES.length];
+	private final long[] totalActions = new long[PHASE_NAMES.length];
+	private final long[] previousNanos = new long[PHASE_NAMES.length];
+	private final long[] previousActions = new long[PHASE_NAMES.length];
+	private long previousCoalesced;
+	private final Map<String, long[]> batches = new HashMap<String, long[]>();
+	private long lastCoalesced;
+	private long totalCoalesced;
+	private long flushCount;
+	private Thread flushThread;
+	private long flushStart;
+	private long mark;
+	private long nested;
+
+	public static int getPhaseCount() {
+		return PHASE_NAMES.length;
+	}
+
+	public static String getPhaseName(int phase) {
+		return PHASE_NAMES[phase];
+	}
+
+	public synchronized void flushStarted() {
+		for (int i = 0; i < this.lastNanos.length; i++) {
+			this.previousNanos[i] = this.lastNanos[i];
+			this.previousActions[i] = this.lastActions[i];
+			this.lastNanos[i] = 0;
+			this.lastActions[i] = 0;
+		}
+		this.previousCoalesced = this.lastCoalesced;
+		this.lastCoalesced = 0;
+		this.flushThread = Thread.currentThread();
+		this.flushStart = System.nanoTime();
+		this.mark = this.flushStart;
+		this.nested = 0;
+	}
+
+	/**
+	 * End the given phase, charging it the time since the previous phase
+	 * ended.
+	 */
+	public synchronized void phaseEnded(int phase) {
+		if (this.flushThread == null) {
+			return;
+		}
+		long now = System.nanoTime();
+		add(phase, Math.max(0, now - this.mark - this.nested));
+		this.mark = now;
+		this.nested = 0;
+	}
+
+	public synchronized void actionsExecuted(int phase, int actions) {
+		this.lastActions[phase] += actions;
+		this.totalActions[phase] += actions;
+	}
+
+	/**
+	 * Queued actions the action queue merged into others before execution.
+	 */
+	public synchronized void actionsCoalesced(int actions) {
+		this.lastCoalesced += actions;
+		this.totalCoalesced += actions;
+	}
+
+	public synchronized void batchExecuted(String sql, int rows, long nanos) {
+		long[] counts = this.batches.get(sql);
+		if (counts == null) {
+			counts = new long[2];
+			this.batches.put(sql, counts);
+		}
+		counts[0]++;
+		counts[1] += rows;
+		record(BATCH_EXECUTION, nanos);
+	}
+
+	public synchronized void cacheInvalidated(long nanos) {
+		record(CACHE_INVALIDATION, nanos);
+	}
+
+	/**
+	 * End the flush, returning false if none was started.
+	 */
+	public synchronized boolean flushEnded() {
+		if (this.flushThread == null) {
+			return false;
+		}
+		add(TOTAL, System.nanoTime() - this.flushStart);
+		this.flushThread = null;
+		this.flushCount++;
+		return true;
+	}
+
+	/**
+	 * End a flush that turned out not to be needed, such as an auto-flush
+	 * check that found nothing to flush. Nothing of it is recorded and the
+	 * last flush stays the one before.
+	 */
+	public synchronized void flushSkipped() {
+		if (this.flushThread == null) {
+			return;
+		}
+		for (int i = 0; i < this.lastNanos.length; i++) {
+			this.totalNanos[i] -= this.lastNanos[i];
+			this.totalActions[i] -= this.lastActions[i];
+			this.lastNanos[i] = this.previousNanos[i];
+			this.lastActions[i] = this.previousActions[i];
+		}
+		this.totalCoalesced -= this.lastCoalesced;
+		this.lastCoalesced = this.previousCoalesced;
+		this.flushThread = null;
+	}
+
+	private void record(int phase, long nanos) {
+		add(phase, nanos);
+		if (Thread.currentThread() == this.flushThread) {
+			this.nested += nanos;
+		}
+	}
+
+	private void add(int phase, long nanos) {
+		this.lastNanos[phase] += nanos;
+		this.totalNanos[phase] += nanos;
+	}
+
+	public synchronized long getFlushCount() {
+		return this.flushCount;
+	}
+
+	/**
+	 * Nanoseconds spent in the given phase during the last flush.
+	 */
+	public synchronized long getLastFlushTime(int phase) {
+		return this.lastNanos[phase];
+	}
+
+	/**
+	 * Nanoseconds spent in the given phase over all flushes of the session.
+	 */
+	public synchronized long getTotalTime(int phase) {
+		return this.totalNanos[phase];
+	}
+
+	/**
+	 * Actions executed from the queue of the given phase during the last
+	 * flush.
+	 */
+	public synchronized long getLastFlushActionCount(int phase) {
+		return this.lastActions[phase];
+	}
+
+	public synchronized long getTotalActionCount(int phase) {
+		return this.totalActions[phase];
+	}
+
+	/**
+	 * Queued actions merged into others during the last flush.
+	 */
+	public synchronized long getLastFlushCoalescedCount() {
+		return this.lastCoalesced;
+	}
+
+	public synchronized long getTotalCoalescedCount() {
+		return this.totalCoalesced;
+	}
+
+	public synchronized String[] getBatchedSQLs() {
+		return this.batches.keySet().toArray(new String[this.batches.size()]);
+	}
+
+	public synchronized long getBatchCount(String sql) {
+		long[] counts = this.batches.get(sql);
+		return counts == null ? 0 : counts[0];
+	}
+
+	public synchronized long getBatchRowCount(String sql) {
+		long[] counts = this.batches.get(sql);
+		return counts == null ? 0 : counts[1];
+	}
+
+	public synchronized String toString() {
+		StringBuffer buf = new StringBuffer("FlushProfile[flushes=").append(this.flushCount);
+		for (int i = 0; i < PHASE_NAMES.length; i++) {
+			buf.append(' ').append(PHASE_NAMES[i]).append('=').append(this.lastNanos[i] / 1000L).append("us");
+			if (this.lastActions[i] > 0) {
+				buf.append('/').append(this.lastActions[i]);
+			}
+		}
+		if (this.lastCoalesced > 0) {
+			buf.append(" coalesced=").append(this.lastCoalesced);
+		}
+		return buf.append(']').toString();
+	}
+}
@@ -0,0 +1,56 @@
+package org.hibernate.stat;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contention free histogram with power of two buckets: bucket <tt>i</tt>
+ * counts the values in <tt>[2^i, 2^(i+1))</tt>, bucket <tt>0</tt> also
+ * counts zero.
+ */
+public class LogHistogram {
+	private static final int BUCKETS = 40;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder total = new LongAdder();
+
+	public LogHistogram() {
+		for (int i = 0; i < BUCKETS; i++) {
+			this.buckets[i] = new LongAdder();
+		}
+	}
+
+	public void record(long value) {
+		int bucket = value <= 1L ? 0 : Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(value));
+		this.buckets[bucket].increment();
+		this.total.add(value);
+	}
+
+	/**
+	 * The bucket counts, trailing empty buckets removed.
+	 */
+	public long[] getCounts() {
+		long[] counts = new long[BUCKETS];
+		int length = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = this.buckets[i].sum();
+			if (counts[i] != 0L) {
+				length = i + 1;
+			}
+		}
+		long[] result = new long[length];
+		System.arraycopy(counts, 0, result, 0, length);
+		return result;
+	}
+
+	public long getCount() {
+		long count = 0L;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += this.buckets[i].sum();
+		}
+		return count;
+	}
+
+	public long getTotal() {
+		return this.total.sum();
+	}
+}